@@ -0,0 +1,132 @@
+package com.example.metronome2;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Runs a BPMCounter on its own worker thread so the sensor callback never waits on spectral work.
+
+    The sensor thread calls offer() for every sample, which just drops the sample in a lock-free
+     queue and returns. The worker drains the queue into the BPMCounter and, whenever a hop
+     produces an estimate, hands it to the Listener. The listener is called on the worker thread,
+     so anything that touches views has to hop back to the UI thread (runOnUiThread) itself.
+
+    Configure the wrapped counter (fusion, spectrum mode, ...) before calling start(); after that
+     it belongs to the worker.
+ */
+public class AsyncBPMCounter {
+    public interface Listener {
+        /*
+            Called on the worker thread with the same value BPMCounter.record() returns on a hop,
+             and BPMCounter.getConfidence() for it
+         */
+        void onEstimate(float beatsPerSecond, float confidence);
+    }
+
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private final BPMCounter counter;
+    private final Listener listener;
+    private final SampleQueue queue = new SampleQueue(QUEUE_CAPACITY);
+
+    private volatile boolean running = false;
+    private volatile boolean workerParked = false;
+    private volatile Thread worker;
+
+    public AsyncBPMCounter(BPMCounter counter, Listener listener) {
+        this.counter = counter;
+        this.listener = listener;
+    }
+
+    public BPMCounter getCounter() {
+        return counter;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "BPMCounter");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+
+    /*
+        Hands a sample to the worker. Never blocks; returns false if the worker is so far behind
+         that the queue is full and the sample had to be dropped.
+     */
+    public boolean offer(float x, float y, float z) {
+        return offerNanos(x, y, z, System.nanoTime());
+    }
+
+    /*
+        timestamp in milliseconds, see BPMCounter.record(x, y, z, timestamp)
+     */
+    public boolean offer(float x, float y, float z, long timestamp) {
+        return offerNanos(x, y, z, timestamp * 1000000L);
+    }
+
+    /*
+        timestamp in nanoseconds (e.g. SensorEvent.timestamp), see BPMCounter.recordNanos
+     */
+    public boolean offerNanos(float x, float y, float z, long timestampNanos) {
+        boolean accepted = queue.offer(x, y, z, timestampNanos);
+        // offer() publishes with a volatile write, so this read can't see a stale false, see work()
+        if (workerParked) {
+            LockSupport.unpark(worker);
+        }
+        return accepted;
+    }
+
+    /*
+        How many samples have been dropped because the queue was full
+     */
+    public long droppedSamples() {
+        return queue.dropped();
+    }
+
+    private void work() {
+        while (running) {
+            if (queue.isEmpty()) {
+                /*
+                    Announce that we're about to park, then check again so a sample offered in
+                     between doesn't get stuck until the next one arrives. That takes volatile
+                     accesses on both sides: here a write of workerParked then a read of the
+                     queue's tail, in offerNanos() a write of tail then a read of workerParked.
+                     Volatile accesses are sequentially consistent with each other, so either
+                     this sees the sample or the producer sees workerParked and unparks us (an
+                     unpark before the park just makes the park return straight away).
+                 */
+                workerParked = true;
+                if (queue.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                workerParked = false;
+                continue;
+            }
+            float result = queue.poll(counter);
+            if (result != -1 && !Float.isNaN(result)) {
+                listener.onEstimate(result, counter.getConfidence());
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.metronome2;
+
+import java.util.Arrays;
+
+/*
+    Picks recordsToKeep and updateFrequency for a BPMCounter at runtime instead of hard-coding
+     them, based on how long hops actually take on this device.
+
+    Two things are being balanced:
+        - CPU: the fraction of one core spent on hops, i.e. hop time / time between hops, should
+            stay under cpuBudget. The budget gets scaled down by setBudgetScale() when the
+            battery is low or the device is getting hot.
+        - Latency: a new estimate should come out about every targetLatency seconds.
+
+    It keeps the CPU fraction of the last SETTLE_HOPS hops and goes by their median, so the odd
+     hop that got preempted or ran into a GC (or the JIT, right after a resize) doesn't trigger a
+     change. Once there are SETTLE_HOPS hops at the current sizes:
+        - over budget: make hops less frequent (double updateFrequency) as long as that keeps
+            them within 2 * targetLatency, otherwise halve the window
+        - well under budget (a quarter of it): bring hops back to targetLatency first, then
+            double the window, up to maxWindow
+        - hops much more often than targetLatency asks for: double updateFrequency, there's
+            no point spending the CPU
+
+    Sizes only ever move between powers of two, so the FFTs stay on the fast radix-2/4 path and
+     updateFrequency always divides into recordsToKeep. The counter keeps maxWindow samples around
+     whatever the current window is (see BPMCounter.resize), so a bigger window is full of real
+     samples from its first hop and a change doesn't reset the estimate.
+
+    Only the analysis at the end of each hop gets timed (BPMCounter.getLastHopNanos), not the
+     per-sample work of the resampler, decimator or SLIDING_DFT, which is small and doesn't
+     depend on the window size anyway.
+
+    afterHop() is called by the counter on its own thread; setBudgetScale() can be called from
+     anywhere.
+ */
+public class AutoTuner {
+    // Hops to wait after a change (or at the start) before judging the new sizes
+    private static final int SETTLE_HOPS = 16;
+
+    private final int minWindow;
+    private final int maxWindow;
+    private final float targetLatency;
+    private final float cpuBudget;
+
+    private volatile float budgetScale = 1;
+
+    // CPU fraction of the last SETTLE_HOPS hops (a ring), and scratch space for the median
+    private final double[] loads = new double[SETTLE_HOPS];
+    private final double[] sortedLoads = new double[SETTLE_HOPS];
+    private double load = 0;
+    private int hopsSinceChange = 0;
+
+    /*
+        minWindow, maxWindow: powers of two bounding recordsToKeep. minWindow should still be a
+         few beats long at MIN_BPM at the (decimated) sample rate.
+        targetLatency: seconds between estimates.
+        cpuBudget: fraction of one core, e.g. 0.01 for 1%.
+     */
+    public AutoTuner(int minWindow, int maxWindow, float targetLatency, float cpuBudget) {
+        if (Integer.bitCount(minWindow) != 1 || Integer.bitCount(maxWindow) != 1 || minWindow > maxWindow) {
+            throw new IllegalArgumentException("Window sizes must be powers of two with min <= max, got "
+                    + minWindow + " and " + maxWindow);
+        }
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.targetLatency = targetLatency;
+        this.cpuBudget = cpuBudget;
+    }
+
+    /*
+        Multiplies the CPU budget, e.g. 0.5 when the battery is low or 0.25 when the device is
+         throttling. 1 is the full budget.
+     */
+    public void setBudgetScale(float budgetScale) {
+        this.budgetScale = budgetScale;
+    }
+
+    public float getBudgetScale() {
+        return budgetScale;
+    }
+
+    public int getMaxWindow() {
+        return maxWindow;
+    }
+
+    /*
+        Median fraction of one core the last SETTLE_HOPS hops used, as of the last decision
+     */
+    public float getLoad() {
+        return (float) load;
+    }
+
+    /*
+        Called by the counter after every hop. samplePeriod is the seconds between samples in
+         the window.
+     */
+    void afterHop(BPMCounter counter, long hopNanos, float samplePeriod) {
+        int window = counter.getRecordsToKeep();
+        int hop = counter.getUpdateFrequency();
+        if (!(samplePeriod > 0)) {
+            return;
+        }
+        double hopSeconds = hop * samplePeriod;
+        loads[hopsSinceChange % SETTLE_HOPS] = hopNanos / 1e9 / hopSeconds;
+        hopsSinceChange += 1;
+        if (hopsSinceChange < SETTLE_HOPS) {
+            return;
+        }
+        System.arraycopy(loads, 0, sortedLoads, 0, SETTLE_HOPS);
+        Arrays.sort(sortedLoads);
+        load = sortedLoads[SETTLE_HOPS / 2];
+
+        double budget = cpuBudget * budgetScale;
+        int newWindow = window;
+        int newHop = hop;
+        if (load > budget) {
+            // Doubling the hop is fine as long as it stays within twice the target latency
+            if (hopSeconds <= targetLatency && hop * 2 <= window / 2) {
+                newHop = hop * 2;
+            } else if (window / 2 >= minWindow) {
+                newWindow = window / 2;
+                newHop = Math.min(hop, newWindow / 2);
+            }
+        } else if (load < budget / 4) {
+            if (hopSeconds > targetLatency && hop > 1) {
+                newHop = hop / 2;
+            } else if (window * 2 <= maxWindow) {
+                newWindow = window * 2;
+            }
+        } else if (hopSeconds * 2 <= targetLatency && hop * 2 <= window / 2) {
+            newHop = hop * 2;
+        }
+
+        if (newWindow != window || newHop != hop) {
+            counter.resize(newWindow, newHop);
+            hopsSinceChange = 0;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.metronome2;
+
+/*
+    Decides how the three accelerometer axes get turned into a single BPM estimate every hop.
+
+    Implementations are free to pick how much work they do: MaxPeakFusion and SummedPowerFusion
+     look at all three spectra (three FFTs per hop), while VectorMagnitudeFusion and
+     PrincipalAxisFusion collapse the window into one signal first and only need one FFT. That's
+     the accuracy-vs-cost tradeoff we want to be able to measure, so swap them with
+     BPMCounter.setAxisFusion() and compare.
+
+    The counter has already measured the sample rate and the BPM band for this hop by the time
+     estimate() is called.
+ */
+public interface AxisFusion {
+    /*
+        Fills result with [frequency, weight] for the current window, same as run_fft returns
+     */
+    void estimate(BPMCounter counter, float[] result);
+}
@@ -1,11 +1,7 @@
 package com.example.metronome2;
-import org.apache.commons.math3.*;
-import org.jtransforms.*;
 import org.jtransforms.fft.FloatFFT_1D;
-import org.visnow.jlargearrays.*;
+import org.jtransforms.utils.SpectralPeaks;
 
-import java.lang.reflect.Array;
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /*
@@ -17,254 +13,1719 @@ public class BPMCounter {
         Example memory layout given
             recordsToKeep = 1024
             updateFrequency = 32
-            HISTORY = 32
             **updateFrequency is required to divide into recordsToKeep evenly
 
-        data[] is initialized so that we have HISTORY windows of recordsToKeep values
-         In this case, that's 32 windows of 1024 values for 32768 total.
+        Samples live in a SampleStore, which is a circular buffer of exactly recordsToKeep
+         samples. Instead of one DataPoint object per sample, each axis (and the timestamps) gets
+         its own primitive array:
 
-        data = [0, 1, 2, ..., 1021, 1022, 1023 |||| 1024, 1025, 1026, ... , 2045, 2046, 2047 |||| ...]
-                        one window                          second window
+        x = [0, 1, 2, ..., 1021, 1022, 1023]
+        y = [0, 1, 2, ..., 1021, 1022, 1023]
+        z = [0, 1, 2, ..., 1021, 1022, 1023]
+        t = [0, 1, 2, ..., 1021, 1022, 1023]
+                     ^
+                   head
 
-        Whenever a new data point comes in, we store it in one of these 32768 cells. currPos
-         stores the current write index.
+        Whenever a new data point comes in, it overwrites the oldest one and the head moves
+         forward by one, wrapping around at the end. That means the buffer always holds the most
+         recent recordsToKeep samples, which is exactly the window we want to run the FFT on.
 
-        data = [0, 1, 2, ..., 1021, 1022, 1023 |||| 1024, 1025, 1026, ... , 2045, 2046, 2047 |||| ...]
-                ^
-             currPos
+         Every time we collect updateFrequency (32) more data points, we run an FFT over the whole
+          buffer. Reading the window out is just offset arithmetic from the head (at most two
+          array copies, one on each side of the wrap point), so there's no clearHistory() step
+          anymore and nothing gets allocated per sample.
 
-        Each index stores a DataPoint object, which just indicates the x- y- z- accelerometer readings
-         as well as a timestamp for when that measurement was taken.
+         Why is the data stored like this? I wanted something that:
+          - Took up fixed memory on the watch (no infinitely growing ArrayList)
+          - Did not consistently overwrite the entire array (e.g. delete the first item, add one
+                to the end, shift everything over)
+          - Did not create a new object for every sample, since under SENSOR_DELAY_FASTEST that
+                kept the garbage collector busy enough to stall the UI thread
+     */
+    private int recordsToKeep;
+    private int updateFrequency;
+    private int samplesSinceUpdate = 0;
+
+    static final int MIN_BPM = 40;
+    static final int MAX_BPM = 200;
+
+    /*
+        How the spectrum gets computed every hop.
+            FULL_FFT    - a full recordsToKeep-point FFT per axis every hop (the original approach)
+            SLIDING_DFT - only the bins between MIN_BPM and MAX_BPM, updated once per sample
+            ZOOM        - a chirp-z transform that evaluates a dense grid (zoomResolution BPM
+                          apart) only between MIN_BPM and MAX_BPM, see ZoomSpectrum
+            AUTOCORRELATION - decides the period by autocorrelation instead of a spectrum peak:
+                          autocorrelates each axis (zero padded, via realForward, power spectrum,
+                          realInverse), picks the shortest lag between MAX_BPM and MIN_BPM that
+                          repeats nearly as strongly as the best one, then takes the spectrum
+                          peak near that lag's frequency, see run_autocorrelation. Every
+                          multiple of the beat period repeats too, so this is no better at
+                          octave errors than a spectrum peak, it just errs the other way.
+            WELCH       - a running average of power spectra instead of one snapshot: every hop
+                          FFTs only the newest welchSegment samples and folds their power into an
+                          exponential average (welchAveraging), so the peak moves smoothly and
+                          each hop costs a much shorter FFT. Bins are recordsToKeep/welchSegment
+                          times wider, so use a sub-bin PeakInterpolation with it.
+            FIXED_POINT - FULL_FFT in integer arithmetic for low power: Q15 samples, an integer
+                          FFT and alpha max plus beta min instead of a sqrt per bin, and only
+                          the bins the peak search reads, see FixedPointFFT. Magnitudes are
+                          within 4% of FULL_FFT's, so the same peak wins unless two are that
+                          close. Needs recordsToKeep to be a power of two, otherwise hops run
+                          FULL_FFT. QUINN and JACOBSEN fall back to PARABOLIC, there are no
+                          complex bins.
+
+        FULL_FFT is kept around so the other results can be checked against it. The mode applies
+         to the per-axis spectra; fusion strategies that collapse the axes into one signal always
+         use a full FFT on it.
+     */
+    public enum SpectrumMode {
+        FULL_FFT,
+        SLIDING_DFT,
+        ZOOM,
+        AUTOCORRELATION,
+        WELCH,
+        FIXED_POINT
+    }
+
+    /*
+        How the peak gets refined between bins, see PeakInterpolator.
+            TOP_TWO_AVERAGE - the original heuristic: if the two strongest bins are next to each
+                              other, average their frequencies weighted by magnitude
+            PARABOLIC, GAUSSIAN, QUINN, JACOBSEN - the PeakInterpolator estimators
+     */
+    public enum PeakInterpolation {
+        TOP_TWO_AVERAGE,
+        PARABOLIC,
+        GAUSSIAN,
+        QUINN,
+        JACOBSEN
+    }
+
+    /*
+        Which bin in the BPM band counts as the peak, before PeakInterpolation refines it.
+            STRONGEST_BIN    - the bin with the biggest magnitude (the original approach). A
+                               beat that isn't a pure sine has harmonics at 2x and 3x its tempo,
+                               and a swaying arm puts energy at 0.5x, so this regularly lands on
+                               double or half tempo.
+            HARMONIC_SUM     - scores every bin k as m[k] + 0.8 m[2k] + 0.64 m[3k], i.e. by how
+                               much of a beat at that tempo (with its harmonics) is in the
+                               spectrum. Double tempo misses the fundamental, and half tempo only
+                               gets the real beat at 0.8 weight. With equal weights a pure sine
+                               ties with its own half tempo; with 1/h weights a beat whose 2nd
+                               harmonic is stronger than its fundamental still reads as double.
+                               0.8 is about where Hermes' subharmonic summation puts it too.
+            HARMONIC_PRODUCT - the harmonic product spectrum, m[k] * m[2k] * m[3k] (its cube
+                               root, see PeakFinder.score). Much more decisive than the sum as
+                               long as the harmonics are really there, worse when one of them is
+                               buried in noise. Even on ReplayHarness' synthetic traces at the
+                               app's settings it reads 70-90 BPM as double on about 1 hop in 10,
+                               where the double only has room for its 2nd harmonic; those hops
+                               come with a confidence under 0.1, but HARMONIC_SUM doesn't have
+                               the problem at all and is the one to use.
+
+        The harmonics are read straight out of the magnitude spectrum while scanning the band (the
+         strongest of the 3 bins around 2k and 3k, since the true harmonic of a peak between bins
+         can be a bin over), so nothing extra gets computed or allocated. Only harmonics below the
+         top of the spectrum are used; with a decimator that's 1/3 of the sample rate rather than
+         Nyquist, since the filters blur everything above it. HARMONIC_SUM scores every bin with
+         all of its harmonics that fit, so the low tempos get their 3rd harmonic even when the
+         top of the band only has room for the 2nd (see PeakFinder.harmonicsFor for why that's
+         fair), and so does HARMONIC_PRODUCT.
+         If not even 2x fits anywhere in the band, or the spectrum only exists for the band itself
+         (SLIDING_DFT, ZOOM), the harmonic modes fall back to STRONGEST_BIN, and log why at INFO
+         when they start to. Fitting 2x takes a sample rate of about 2 * 3 * MAX_BPM / 60 with a
+         decimator, i.e. 20 Hz after decimation, and 2/3 of that without one. AUTOCORRELATION
+         doesn't use bins at all and ignores this.
+     */
+    public enum PeakSearch {
+        STRONGEST_BIN,
+        HARMONIC_SUM,
+        HARMONIC_PRODUCT
+    }
+
+    /*
+        Extra bins tracked on each side of the BPM band in SLIDING_DFT mode, so small drifts in the
+         measured sample rate don't force a reseed every hop
+     */
+    private static final int SLIDING_MARGIN = 2;
+
+    private SampleStore data;
+    private float[] xF;
+    private float measured_time_for_one_datapoint = -1;
+    private int min_index;
+    private int max_index;
+
+    /*
+        How far the measured sample rate has to move (as a fraction) before xF and the BPM band
+         get worked out again. 0.2% is well under a bin anywhere in the band, and means the axis
+         stops getting rebuilt every hop just because the timestamps jittered.
+     */
+    private static final float RATE_DRIFT = 0.002f;
+
+    /*
+        Optional resampling front end, see Resampler. When it's set, samples go through it first
+         and the window is exactly 1/rate apart, so the frequency axis is worked out once and never
+         has to be measured again. null means samples are used as they arrive and the rate is
+         measured from their timestamps.
+     */
+    private Resampler resampler = null;
+
+    /*
+        Optional decimator after the resampler, see Decimator. null means every sample goes into
+         the window. recordsToKeep and updateFrequency count samples after decimation.
+     */
+    private Decimator decimator = null;
+    private boolean primed = false;
+
+    /*
+        Extra room on each side of the band in ZOOM mode, as a fraction of the band width, so the
+         grid doesn't need replanning every time the sample rate wobbles
+     */
+    private static final float ZOOM_MARGIN = 0.1f;
+
+    /*
+        How strong (as a fraction of the strongest) a shorter lag's repeat has to be for
+         AUTOCORRELATION to go with it instead. Multiples of the beat period come out a little
+         weaker than the period itself after the N - lag normalization only because of noise and
+         tempo drift, while a real half-period repeat (an arm that swings back on every other
+         beat) is usually much weaker. It's measured against the strongest of all the multiples
+         in the lag range, though, and a fast beat has five of them: at 200 BPM and 20 Hz the
+         tallest was more than 1.25 times the period's own peak on 40% of hops, so 0.8 read it
+         as 100 BPM on those.
+     */
+    private static final float ACF_SHORTEST_FRACTION = 0.6f;
+    // How far either side of the lag's frequency AUTOCORRELATION looks for the spectrum peak
+    private static final float ACF_REFINE_RANGE = 0.15f;
+
+    private SpectrumMode spectrumMode = SpectrumMode.FULL_FFT;
+
+    /*
+        Window applied to the samples before the FFT (FULL_FFT and ZOOM, and the full FFTs fusion
+         strategies run), see WindowFunction. windowTable is its coefficients for recordsToKeep,
+         or null for RECTANGULAR so the copy stays a plain arraycopy.
+
+        SLIDING_DFT can't window its input (every sample would need a different weight each hop)
+         and AUTOCORRELATION doesn't want to, so both ignore it.
+     */
+    private WindowFunction windowFunction = WindowFunction.RECTANGULAR;
+    private float[] windowTable = null;
+    private PeakInterpolation peakInterpolation = PeakInterpolation.TOP_TWO_AVERAGE;
+    private PeakSearch peakSearch = PeakSearch.STRONGEST_BIN;
+    /*
+        Whether the harmonic PeakSearch last had to go by the strongest bin alone, so that only
+         gets logged when it starts happening rather than on every hop
+     */
+    private boolean harmonicsFellBack = false;
+    private SlidingDFT[] sliding;
+    private float[] slidingWindow;
+
+    private float zoomResolution = 0.5f;
+    private ZoomSpectrum zoom;
+    private float[][] zoomMagnitudes;
+    private float[] zoomFused;
+    private float[] zoomFrequency;
+    private int zoomFrom;
+    private int zoomTo;
+
+    private int welchSegment;
+    private float welchAveraging;
+    private FloatFFT_1D welchFft;
+    private float[][] welchBuffers;
+    // Running average of each axis' power spectrum, and its square root for pickPeak
+    private float[][] welchPower;
+    private float[][] welchMagnitudes;
+    private float[] welchFused;
+    private float[] welchFrequency;
+    private float[] welchWindow;
+    private float welchAxisTime = -1;
+    private int welchFrom;
+    private int welchTo;
+    private boolean welchPrimed = false;
+
+    /*
+        The FFT plan (twiddle factors, bit reversal tables, ...) only depends on recordsToKeep, so
+         it's built once here instead of on every run_fft call. Same goes for the work arrays: one
+         set per axis, indexed by SampleStore.X/Y/Z, reused every hop. After the first hop, running
+         the spectrum doesn't allocate anything.
+     */
+    private FloatFFT_1D fftDo;
+    // AUTOCORRELATION's 4 * recordsToKeep plan and buffers, made on the first hop that needs them
+    private FloatFFT_1D acfFft;
+    private float[][] acfBuffers;
+    // FIXED_POINT's plan, made on the first hop that needs it
+    private FixedPointFFT fixedFft;
+    private float[][] fftBuffers;
+    private float[][] magnitudes;
+    // Axes whose magnitudes[] only hold the bins around the peak so far, see pickBandPeak()
+    private final boolean[] magnitudesPending = new boolean[3];
+    private final int[] bandPeaks = new int[2];
+    private final float[] bandPowers = new float[2];
+    private float[][] results;
+
+    /*
+        How the three axes get combined into one estimate, see AxisFusion. The fused buffers are
+         scratch space for strategies that collapse the axes into one signal.
+     */
+    private AxisFusion fusion = new MaxPeakFusion();
+    private float[] fusedWindow;
+    private float[] fusedMagnitude;
+    private float[] estimate = new float[2];
+    /*
+        Whether estimate holds what a hop came up with since the last resize() or setIdleGate(),
+         i.e. whether an idle hop has anything to repeat
+     */
+    private boolean hasEstimate = false;
+
+    // How long the last hop's analysis took, to compare the cost of the different modes
+    private long lastHopNanos = 0;
+
+    private AutoTuner autoTuner = null;
+
+    /*
+        Idle gate, see setIdleGate(). Each axis' sum and sum of squares over the current hop are
+         kept as samples come in, so the motion level of a hop is known without another pass over
+         the window. idleLevel <= 0 means the gate is off.
+     */
+    private float idleLevel = 0;
+    private float wakeLevel = 0;
+    private int idleHops = 0;
+    private double hopSumX, hopSumY, hopSumZ;
+    private double hopSquaresX, hopSquaresY, hopSquaresZ;
+    private int hopSamples = 0;
+    private float motionLevel = 0;
+    private int stillHops = 0;
+    private boolean idle = false;
+
+    /*
+        Debug output and the optional binary per-hop trace. Both default to off, and every log
+         call is gated on isEnabled() so nothing gets formatted unless someone's listening.
+     */
+    static final int AXIS_FUSED = 3;
+    private DiagnosticsSink diagnostics = DiagnosticsSink.NONE;
+    private HopTraceRecorder trace = null;
+    private BeatTracker beatTracker = null;
+    private SessionRecorder session = null;
+    private int lastPeakIndex = -1;
+    private int[] axisPeakIndex = new int[3];
+    private float[] axisWeight = new float[3];
+    private int decidedAxis = AXIS_FUSED;
+
+    /*
+        How unambiguous the peak was, see findPeak(): the last one found, per axis, and the one
+         behind the last estimate
+     */
+    private float lastConfidence = 0;
+    private float[] axisConfidence = new float[3];
+    private float confidence = 0;
+    // Index of the strongest bin other than the peak, for TOP_TWO_AVERAGE
+    private int secondIndex = -1;
+    private final PeakFinder peaks = new PeakFinder();
+
+    public BPMCounter(int recordsToKeep, int updateFrequency) {
+        this.recordsToKeep = recordsToKeep;
+        this.updateFrequency = updateFrequency;
+
+        /*
+            Initialize a buffer of 0's at the start. These will get slowly phased out as real data
+            comes in, but are a nice way to smooth out the startup process. Their timestamps get
+            set to the time of the first real sample, see ingest()
+         */
+        data = new SampleStore(recordsToKeep);
+        results = new float[3][2];
+        allocateWindowBuffers();
+
+        /*
+            A quarter of the window per segment, and an average that forgets over about one window
+             length's worth of hops, so WELCH looks at roughly the same stretch of time as FULL_FFT
+         */
+        welchSegment = Math.max(recordsToKeep / 4, 2);
+        welchAveraging = Math.min((float) updateFrequency / recordsToKeep, 1);
+    }
+
+    /*
+        Everything whose size depends on recordsToKeep
+     */
+    private void allocateWindowBuffers() {
+        xF = new float[recordsToKeep];
+        fftDo = new FloatFFT_1D(recordsToKeep);
+        fixedFft = null;
+        acfFft = null;
+        acfBuffers = null;
+        fftBuffers = new float[3][recordsToKeep];
+        magnitudes = new float[3][recordsToKeep / 2];
+        fusedWindow = new float[recordsToKeep];
+        fusedMagnitude = new float[recordsToKeep / 2];
+    }
+
+    public int getRecordsToKeep() {
+        return recordsToKeep;
+    }
+
+    public int getUpdateFrequency() {
+        return updateFrequency;
+    }
+
+    /*
+        Changes the window and hop size on the fly. The sample store is never shrunk, only the
+         window looking at it, so after shrinking the older samples are still there for growing
+         back, and with an AutoTuner attached the store is as big as its largest window from the
+         start (see setAutoTuner): the window always grows into real samples, never into zeros.
+         Growing past the store (no AutoTuner, or past its maxWindow) grows the store too, and the
+         samples from before it existed can only be zeros then. Plans and buffers for the new size
+         are allocated here, so don't call it every hop; AutoTuner only does it every so often.
+
+        Must be called from whichever thread calls record(), e.g. from an AutoTuner.
+     */
+    public void resize(int recordsToKeep, int updateFrequency) {
+        if (recordsToKeep < 4 || updateFrequency < 1 || recordsToKeep % updateFrequency != 0) {
+            throw new IllegalArgumentException("updateFrequency (" + updateFrequency
+                    + ") has to divide into recordsToKeep (" + recordsToKeep + ") evenly");
+        }
+        this.updateFrequency = updateFrequency;
+        samplesSinceUpdate = samplesSinceUpdate % updateFrequency;
+        hasEstimate = false;
+        if (recordsToKeep == this.recordsToKeep) {
+            return;
+        }
+        int oldRecords = this.recordsToKeep;
+        this.recordsToKeep = recordsToKeep;
+        if (recordsToKeep > data.capacity()) {
+            data.resize(recordsToKeep);
+        }
+        allocateWindowBuffers();
+
+        measured_time_for_one_datapoint = -1;
+        if (sliding != null) {
+            sliding = new SlidingDFT[]{
+                    new SlidingDFT(recordsToKeep),
+                    new SlidingDFT(recordsToKeep),
+                    new SlidingDFT(recordsToKeep)
+            };
+            slidingWindow = new float[recordsToKeep];
+        }
+        zoom = null;
+        // Same segment to window ratio as before
+        welchSegment = Math.max((int) ((long) welchSegment * recordsToKeep / oldRecords), 2);
+        welchFft = null;
+        welchPrimed = false;
+        setWindowFunction(windowFunction);
+    }
+
+    public AutoTuner getAutoTuner() {
+        return autoTuner;
+    }
+
+    /*
+        Attach an AutoTuner to let it resize the window and hop as it sees fit, or null to leave
+         them alone. Grows the sample store to the tuner's maxWindow right away, so there's
+         history to grow the window into whenever it does.
+     */
+    public void setAutoTuner(AutoTuner autoTuner) {
+        this.autoTuner = autoTuner;
+        if (autoTuner != null && autoTuner.getMaxWindow() > data.capacity()) {
+            data.resize(autoTuner.getMaxWindow());
+        }
+    }
+
+    /*
+        Skip the spectral analysis while the wrist is still. The motion level of a hop is the RMS
+         of all three axes around their means over that hop (in whatever units the samples are in,
+         m/s^2 for the accelerometer), so gravity or a constant offset doesn't count as motion.
+
+        After idleHops hops in a row below idleLevel the counter goes idle: hops don't run any
+         FFTs, record() just returns the last estimate again (or -1 like any other hop without one,
+         if there hasn't been an estimate since the last resize() or setIdleGate(), e.g. a wrist
+         that was still from the start), and getConfidence() stays where it was. The first hop above wakeLevel wakes it up and runs a normal hop. Levels in between
+         leave it in whichever state it's in, so a wrist hovering around one level doesn't flip
+         back and forth.
+
+        idleLevel <= 0 turns the gate off (the default).
+     */
+    public void setIdleGate(float idleLevel, float wakeLevel, int idleHops) {
+        if (idleLevel > 0 && (wakeLevel < idleLevel || idleHops < 1)) {
+            throw new IllegalArgumentException("Need wakeLevel >= idleLevel and idleHops >= 1, got "
+                    + idleLevel + ", " + wakeLevel + ", " + idleHops);
+        }
+        this.idleLevel = idleLevel;
+        this.wakeLevel = wakeLevel;
+        this.idleHops = idleHops;
+        stillHops = 0;
+        idle = false;
+        hasEstimate = false;
+    }
+
+    public float getIdleLevel() {
+        return idleLevel;
+    }
+
+    public float getWakeLevel() {
+        return wakeLevel;
+    }
+
+    public int getIdleHops() {
+        return idleHops;
+    }
+
+    /*
+        Whether the last hop was skipped by the idle gate
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /*
+        Motion level (RMS around the mean, all three axes) of the last hop, see setIdleGate()
+     */
+    public float getMotionLevel() {
+        return motionLevel;
+    }
+
+    public SpectrumMode getSpectrumMode() {
+        return spectrumMode;
+    }
+
+    public void setSpectrumMode(SpectrumMode spectrumMode) {
+        if (spectrumMode == SpectrumMode.SLIDING_DFT && sliding == null) {
+            sliding = new SlidingDFT[]{
+                    new SlidingDFT(recordsToKeep),
+                    new SlidingDFT(recordsToKeep),
+                    new SlidingDFT(recordsToKeep)
+            };
+            slidingWindow = new float[recordsToKeep];
+        }
+        if (spectrumMode == SpectrumMode.WELCH && this.spectrumMode != spectrumMode) {
+            // Start the average over from the next segment instead of mixing in an old one
+            welchPrimed = false;
+        }
+        if (spectrumMode == SpectrumMode.SLIDING_DFT && this.spectrumMode != spectrumMode) {
+            // Samples recorded in the other mode never went through update(), so start over
+            for (SlidingDFT s : sliding) {
+                s.invalidate();
+            }
+        }
+        this.spectrumMode = spectrumMode;
+    }
+
+    public float getZoomResolution() {
+        return zoomResolution;
+    }
+
+    /*
+        Spacing of the ZOOM grid, in BPM. Finer means more grid points and a bigger convolution.
+     */
+    public void setZoomResolution(float zoomResolution) {
+        this.zoomResolution = zoomResolution;
+        // Rebuilt with the new spacing on the next hop
+        zoom = null;
+    }
+
+    /*
+        Rate samples get resampled to before they're analyzed, in Hz, or 0 if they're used as is
+     */
+    public float getResampleRate() {
+        return resampler == null ? 0 : 1e9f / resampler.periodNanos();
+    }
+
+    /*
+        Resample incoming samples to a fixed rate (Hz) using their timestamps, or pass 0 to use
+         them as they arrive. Best set before recording starts, since the window isn't cleared.
+     */
+    public void setResampleRate(float rate) {
+        resampler = rate > 0 ? new Resampler(rate) : null;
+        // Make sure the axis gets rebuilt for the new rate on the next hop
+        measured_time_for_one_datapoint = -1;
+    }
+
+    public int getDecimation() {
+        return decimator == null ? 1 : decimator.factor();
+    }
+
+    /*
+        Low-pass filter and keep only one of every factor samples (a power of two) before they go
+         into the window, or 1 to keep them all. The BPM band only needs about 7 samples per
+         second, so e.g. resampling to 80 Hz and decimating by 8 gives the same window length in
+         seconds with an eighth of the FFT size. Like setResampleRate, best set before recording.
+     */
+    public void setDecimation(int factor) {
+        decimator = factor > 1 ? new Decimator(factor) : null;
+        measured_time_for_one_datapoint = -1;
+    }
+
+    public int getWelchSegment() {
+        return welchSegment;
+    }
+
+    /*
+        Length of the segment WELCH mode transforms every hop, at most recordsToKeep. Shorter is
+         cheaper but gives wider bins. Restarts the average.
+     */
+    public void setWelchSegment(int welchSegment) {
+        if (welchSegment < 2 || welchSegment > recordsToKeep) {
+            throw new IllegalArgumentException("Welch segment must be between 2 and " + recordsToKeep + ", got " + welchSegment);
+        }
+        this.welchSegment = welchSegment;
+        welchFft = null;
+        welchPrimed = false;
+    }
+
+    public float getWelchAveraging() {
+        return welchAveraging;
+    }
+
+    /*
+        How much of each new segment's power goes into the WELCH average, in (0, 1]. The average
+         forgets with a time constant of about 1/welchAveraging hops; 1 means no averaging at all.
+     */
+    public void setWelchAveraging(float welchAveraging) {
+        if (!(welchAveraging > 0 && welchAveraging <= 1)) {
+            throw new IllegalArgumentException("Welch averaging must be in (0, 1], got " + welchAveraging);
+        }
+        this.welchAveraging = welchAveraging;
+    }
+
+    public WindowFunction getWindowFunction() {
+        return windowFunction;
+    }
+
+    public void setWindowFunction(WindowFunction windowFunction) {
+        this.windowFunction = windowFunction;
+        windowTable = windowFunction == WindowFunction.RECTANGULAR ? null : windowFunction.table(recordsToKeep);
+    }
+
+    public PeakInterpolation getPeakInterpolation() {
+        return peakInterpolation;
+    }
+
+    public void setPeakInterpolation(PeakInterpolation peakInterpolation) {
+        this.peakInterpolation = peakInterpolation;
+    }
+
+    public PeakSearch getPeakSearch() {
+        return peakSearch;
+    }
+
+    public void setPeakSearch(PeakSearch peakSearch) {
+        this.peakSearch = peakSearch;
+        harmonicsFellBack = false;
+    }
+
+    /*
+        How much the peak behind the last estimate stood out from the next best candidate in the
+         band, from 0 (a tie, e.g. between a tempo and its double) to 1 (nothing else there). With
+         the harmonic PeakSearch modes it's measured on their scores, against the best candidate
+         that isn't the peak's own half or double (see PeakFinder.find). Only changes on a hop.
+     */
+    public float getConfidence() {
+        return confidence;
+    }
+
+    public AxisFusion getAxisFusion() {
+        return fusion;
+    }
+
+    public void setAxisFusion(AxisFusion fusion) {
+        this.fusion = fusion;
+    }
+
+    public DiagnosticsSink getDiagnostics() {
+        return diagnostics;
+    }
+
+    public void setDiagnostics(DiagnosticsSink diagnostics) {
+        this.diagnostics = diagnostics == null ? DiagnosticsSink.NONE : diagnostics;
+    }
+
+    /*
+        Time spent in the last hop's analysis (the fusion strategy and everything it ran), in
+         nanoseconds
+     */
+    public long getLastHopNanos() {
+        return lastHopNanos;
+    }
+
+    public HopTraceRecorder getTraceRecorder() {
+        return trace;
+    }
+
+    /*
+        Attach a recorder to capture every hop, or null to stop tracing
+     */
+    public void setTraceRecorder(HopTraceRecorder trace) {
+        this.trace = trace;
+    }
+
+    public BeatTracker getBeatTracker() {
+        return beatTracker;
+    }
+
+    /*
+        Attach a tracker to follow the phase of the beat as well, or null for just the tempo.
+         It sees every sample before decimation and gets the tempo after every hop.
+     */
+    public void setBeatTracker(BeatTracker beatTracker) {
+        this.beatTracker = beatTracker;
+    }
+
+    public SessionRecorder getSessionRecorder() {
+        return session;
+    }
+
+    /*
+        Attach a recorder to log every sample and estimate to a file, or null to stop. Closing
+         it is up to whoever opened it.
+     */
+    public void setSessionRecorder(SessionRecorder session) {
+        this.session = session;
+    }
+
+    /*
+        Generates the X-axis frequencies based on the time to measure one datapoint (positive only)
+        https://docs.scipy.org/doc/scipy/reference/generated/scipy.fftpack.fftfreq.html
+        Tries to replicate this ^
+     */
+    private void generateXF(float time_for_one_datapoint) {
+        for (int i = 0; i < recordsToKeep / 2; i++) {
+            xF[i] = ((float)i / recordsToKeep) / time_for_one_datapoint;
+        }
+    }
+
+    /*
+        Works out the sample rate of the current window, rebuilds xF and finds the range of bins
+         [min_index, max_index) that correspond to reasonable BPM values.
+
+        With a resampler the rate is known exactly, so this only does anything on the first hop.
+         Otherwise it's measured from the timestamps at either end of the window, and xF is only
+         rebuilt when that drifts more than RATE_DRIFT from the rate the axis was built for.
+     */
+    private void updateFrequencyAxis() {
+        float time_for_one_datapoint;
+        if (resampler != null) {
+            time_for_one_datapoint = resampler.periodNanos() * getDecimation() / 1e9f;
+        } else {
+            long span = data.timestampAt(recordsToKeep, recordsToKeep - 1) - data.timestampAt(recordsToKeep, 0);
+            // nanoseconds to seconds
+            time_for_one_datapoint = (float)(span / 1e9 / (recordsToKeep-1));
+        }
+
+        if (measured_time_for_one_datapoint > 0
+                && Math.abs(time_for_one_datapoint - measured_time_for_one_datapoint) <= measured_time_for_one_datapoint * RATE_DRIFT) {
+            return;
+        }
+        measured_time_for_one_datapoint = time_for_one_datapoint;
+
+        generateXF(time_for_one_datapoint);
+        if (diagnostics.isEnabled(DiagnosticsSink.VERBOSE)) {
+            diagnostics.log(DiagnosticsSink.VERBOSE, "xF: " + Arrays.toString(xF));
+        }
+
+        float min_bps = MIN_BPM / 60.0f;
+        float max_bps = MAX_BPM / 60.0f;
+
+        min_index = -1;
+        max_index = -1;
+
+        /*
+            We're only interested in results that correspond to reasonable BPM values: the bins
+             within half a bin of [MIN_BPM, MAX_BPM], so each end of it is in the bin it lands
+             nearest to. Going by the bins past MIN_BPM instead left 40 BPM itself out whenever
+             it was just above a bin, and with only its slope in the band, 80 beat it. DC is never
+             a tempo, whatever the bin width.
+         */
+        float half_bin = xF[1] / 2;
+        for (int i = 1; i < recordsToKeep / 2; i++) {
+            if (min_index == -1 && xF[i] > min_bps - half_bin) {
+                min_index = i;
+            }
+            if (max_index == -1 && xF[i] > max_bps + half_bin) {
+                max_index = i;
+            }
+        }
+        if (max_index == -1) {
+            // Sampling slowly enough that MAX_BPM is past the top of the spectrum
+            max_index = recordsToKeep / 2;
+        }
+    }
+
+    /*
+        Records a data point. If updateFrequency data points have been collected, run an fft and return the result
+     */
+    public float record(float x, float y, float z) {
+        return recordNanos(x, y, z, System.nanoTime());
+    }
+
+    /*
+        Same as record(x, y, z), but with the time (in milliseconds) the sample was taken. Use this
+         when the sample is recorded later than it was measured, e.g. from AsyncBPMCounter's worker.
+     */
+    public float record(float x, float y, float z, long timestamp) {
+        return recordNanos(x, y, z, timestamp * 1000000L);
+    }
+
+    /*
+        Same as record(x, y, z), with the time the sample was taken in nanoseconds, e.g.
+         SensorEvent.timestamp. Any clock works as long as it's the same one for every sample.
+
+        With a resampler, one input sample can produce zero or several resampled ones; if more
+         than one of them finishes a hop, the newest estimate is returned.
+     */
+    public float recordNanos(float x, float y, float z, long timestampNanos) {
+        if (session != null) {
+            session.sample(x, y, z, timestampNanos);
+        }
+        float result = -1;
+        if (resampler == null) {
+            result = decimate(x, y, z, timestampNanos);
+        } else {
+            resampler.push(x, y, z, timestampNanos);
+            while (resampler.next()) {
+                float r = decimate(resampler.x(), resampler.y(), resampler.z(), resampler.time());
+                if (r != -1) {
+                    result = r;
+                }
+            }
+        }
+        if (session != null && result != -1) {
+            session.estimate(result, confidence);
+        }
+        return result;
+    }
+
+    /*
+        Passes a (possibly resampled) sample through the decimator, if there is one, and to the
+         beat tracker
+     */
+    private float decimate(float x, float y, float z, long timestamp) {
+        if (beatTracker != null) {
+            beatTracker.push(x, y, z, timestamp);
+        }
+        if (decimator == null) {
+            return ingest(x, y, z, timestamp);
+        }
+        if (!decimator.push(x, y, z, timestamp)) {
+            return -1;
+        }
+        return ingest(decimator.x(), decimator.y(), decimator.z(), decimator.time());
+    }
+
+    /*
+        Adds one (possibly resampled and decimated) sample to the window and runs a hop if it's time
+     */
+    private float ingest(float x, float y, float z, long timestamp) {
+        if (!primed) {
+            // Pretend the startup zeros were all taken right now
+            data.fill(timestamp);
+            primed = true;
+        }
+        if (spectrumMode == SpectrumMode.SLIDING_DFT) {
+            // The sliding DFT needs the sample that's about to fall out of the window, so this has to happen before add()
+            sliding[SampleStore.X].update(x, data.oldest(SampleStore.X, recordsToKeep));
+            sliding[SampleStore.Y].update(y, data.oldest(SampleStore.Y, recordsToKeep));
+            sliding[SampleStore.Z].update(z, data.oldest(SampleStore.Z, recordsToKeep));
+        }
+        data.add(x, y, z, timestamp);
+        samplesSinceUpdate += 1;
+        hopSumX += x;
+        hopSumY += y;
+        hopSumZ += z;
+        hopSquaresX += x * x;
+        hopSquaresY += y * y;
+        hopSquaresZ += z * z;
+        hopSamples += 1;
+
+        // If we've reached a multiple of update frequency, we should run an FFT and send the result back
+        if (samplesSinceUpdate == updateFrequency) {
+            samplesSinceUpdate = 0;
+            if (updateIdle()) {
+                if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+                    diagnostics.log(DiagnosticsSink.DEBUG, "Idle (motion " + motionLevel + "), skipping fft");
+                }
+                lastHopNanos = 0;
+                return hasEstimate ? estimate[0] : -1;
+            }
+            if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+                diagnostics.log(DiagnosticsSink.DEBUG, "Running fft");
+            }
+            updateFrequencyAxis();
+            if (min_index == -1 || max_index <= min_index) {
+                /*
+                    The window is so spread out in time (e.g. samples got dropped) that none of the
+                     bins land in the BPM range, there's nothing sensible to report
+                 */
+                return -1;
+            }
+            for (int a = 0; a < 3; a++) {
+                axisPeakIndex[a] = -1;
+                axisWeight[a] = 0;
+                axisConfidence[a] = 0;
+            }
+            decidedAxis = AXIS_FUSED;
+            lastConfidence = 0;
+            long hopStart = System.nanoTime();
+            fusion.estimate(this, estimate);
+            hasEstimate = true;
+            lastHopNanos = System.nanoTime() - hopStart;
+            // Strategies that pick one of the axes say which, the others end on their own pickPeak
+            confidence = decidedAxis == AXIS_FUSED ? lastConfidence : axisConfidence[decidedAxis];
+            if (trace != null) {
+                trace.record(timestamp / 1000000L, min_index, max_index, axisPeakIndex, axisWeight,
+                        decidedAxis, estimate[0], estimate[1]);
+            }
+            if (beatTracker != null) {
+                beatTracker.setTempo(estimate[0], confidence);
+            }
+            if (autoTuner != null) {
+                // May resize the window. This hop still returns its estimate, idle hops after a resize won't repeat it
+                autoTuner.afterHop(this, lastHopNanos, measured_time_for_one_datapoint);
+            }
+            return estimate[0];
+        }
+        return -1;
+    }
+
+    /*
+        Works out the motion level of the hop that just finished, starts the sums over for the
+         next one and decides whether this hop is idle, see setIdleGate()
+     */
+    private boolean updateIdle() {
+        double n = Math.max(hopSamples, 1);
+        double variance = (hopSquaresX - hopSumX * hopSumX / n)
+                + (hopSquaresY - hopSumY * hopSumY / n)
+                + (hopSquaresZ - hopSumZ * hopSumZ / n);
+        motionLevel = (float) Math.sqrt(Math.max(variance / n, 0));
+        hopSumX = hopSumY = hopSumZ = 0;
+        hopSquaresX = hopSquaresY = hopSquaresZ = 0;
+        hopSamples = 0;
+
+        if (idleLevel <= 0) {
+            idle = false;
+        } else if (idle) {
+            if (motionLevel > wakeLevel) {
+                idle = false;
+                stillHops = 0;
+            }
+        } else {
+            stillHops = motionLevel < idleLevel ? stillHops + 1 : 0;
+            idle = stillHops >= idleHops;
+        }
+        return idle;
+    }
+
+    /*
+        Runs an fft on the "x", "y", or "z" dimension.
+
+        Returns a tuple (technically a two-item array) with [frequency, weight]
+
+        Higher weight means there was a bigger peak at that point and it's more confident that
+         the frequency was correct. Frequency is measured in beats per second, the Main Activity
+         does all the scaling/rounding/etc. The array is reused by the next run on the same axis.
+     */
+    public float[] run_fft(String dimension) {
+        switch (dimension) {
+            case "x":
+                return run_fft(SampleStore.X);
+            case "y":
+                return run_fft(SampleStore.Y);
+            case "z":
+                return run_fft(SampleStore.Z);
+            default:
+                return new float[]{};
+        }
+    }
 
-        dataStart is a bit of a weird variable. It's intended to be the boundary between "relevant"
-         and "irrelevant" data. Any data before dataStart is effectively forgotten, and will never
-         be used in another FFT calculation. dataStart is updated every time we run an FFT (which we
-         do every updateFrequency times). dataStart's allowable values are (0, 1, 2, ... , X-1, X)
-         ... where X = recordsToKeep/updateFrequency
+    /*
+        run_fft for an axis index (SampleStore.X/Y/Z), without the string switch.
 
-         Basically, every time we collect 32 more data points, we shift the window, throw out the
-          last 32, and increment dataStart by 1. In this sense, dataStart is basically "which
-          window of 32 is the first one we read from?" This lets us use data once it's read in, but
-          keep using it over the next (recordsToKeep / updateFrequency) FFT calculations as well.
+        The returned array belongs to this counter and gets overwritten the next time the same
+         axis is run, so copy it if you need to keep it around.
+     */
+    float[] run_fft(int axis) {
+        float[] fft = fftBuffers[axis];
+        data.copyWindow(axis, fft, recordsToKeep, windowTable);
 
-         Once we get to the end of the array, we take the last 1024 items, move them to the first
-          1024, and then boom! we can keep recording data starting from 1025. We don't even need to
-          zero out the array since we'll just overwrite stuff and Java has a built in garbage
-          collector (though trust me, I did try to free() all of this stuff before I remembered that)
-          This mass transfer is achieved in the clearHistory() function and occurs very rarely.
+        updateFrequencyAxis();
 
-         Why is the data stored like this? I wanted something that:
-          - Took up fixed memory on the watch (no infinitely growing ArrayList)
-          - Did not consistently overwrite the entire array (e.g. delete the first item, add one
-                to the end, shift everything over)
+        fftDo.realForward(fft);
+
+        /*
+            Combine the real and imaginary parts into one magnitude
+         */
+        float[] realFFT = magnitudes[axis];
+        for (int i = 0; i < recordsToKeep/2; i++) {
+            realFFT[i] = (float)Math.sqrt(fft[2*i]*fft[2*i] + fft[2*i+1]*fft[2*i+1]);
+        }
+        magnitudesPending[axis] = false;
+
+        return pickPeak(realFFT, fft, results[axis]);
+    }
+
+    /*
+        Same as calling run_fft on x, y and z, but sharing as much work as possible between them:
+            - the sample rate, xF and the BPM band are only worked out once per hop instead of
+                once per axis
+            - all three transforms go through the same plan back to back
+            - all three magnitude spectra are built in the same loop
+            - no string switch per axis
+
+        Results end up in results[SampleStore.X/Y/Z]. Expects updateFrequencyAxis() to have been
+         called for this hop.
+
+        With STRONGEST_BIN there's no magnitude spectrum at all up front, see pickBandPeak().
+
+        I did try packing x and y into one complex FFT (x as the real part, y as the imaginary
+         part) and separating them afterwards, but FloatFFT_1D.realForward already runs as a
+         half-size complex FFT internally, so the packed version came out ~10% slower than two
+         realForward calls.
      */
-    private int recordsToKeep;
-    private int updateFrequency;
-    private static final int HISTORY = 32;
-    private int currPos = 0;
-    private int dataStart = 0;
+    private void run_fft_all_axes() {
+        float[] fftX = fftBuffers[SampleStore.X];
+        float[] fftY = fftBuffers[SampleStore.Y];
+        float[] fftZ = fftBuffers[SampleStore.Z];
+        data.copyWindow(SampleStore.X, fftX, recordsToKeep, windowTable);
+        data.copyWindow(SampleStore.Y, fftY, recordsToKeep, windowTable);
+        data.copyWindow(SampleStore.Z, fftZ, recordsToKeep, windowTable);
 
-    private static final int MIN_BPM = 40;
-    private static final int MAX_BPM = 200;
+        fftDo.realForward(fftX);
+        fftDo.realForward(fftY);
+        fftDo.realForward(fftZ);
 
-    private DataPoint[] data;
-    private float[] xF;
+        if (peakSearch == PeakSearch.STRONGEST_BIN) {
+            pickBandPeak(SampleStore.X);
+            pickBandPeak(SampleStore.Y);
+            pickBandPeak(SampleStore.Z);
+            return;
+        }
 
-    private class DataPoint {
-        public float x;
-        public float y;
-        public float z;
-        public long timestamp;
-        public DataPoint(float x, float y, float z, long timestamp) {
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            if (timestamp != -1) {
-                this.timestamp = timestamp;
-            } else {
-                this.timestamp = System.currentTimeMillis();
-            }
+        float[] magX = magnitudes[SampleStore.X];
+        float[] magY = magnitudes[SampleStore.Y];
+        float[] magZ = magnitudes[SampleStore.Z];
+        for (int i = 0; i < recordsToKeep/2; i++) {
+            magX[i] = (float)Math.sqrt(fftX[2*i]*fftX[2*i] + fftX[2*i+1]*fftX[2*i+1]);
+            magY[i] = (float)Math.sqrt(fftY[2*i]*fftY[2*i] + fftY[2*i+1]*fftY[2*i+1]);
+            magZ[i] = (float)Math.sqrt(fftZ[2*i]*fftZ[2*i] + fftZ[2*i+1]*fftZ[2*i+1]);
         }
+
+        pickPeak(magX, fftX, results[SampleStore.X]);
+        noteAxisPeak(SampleStore.X);
+        pickPeak(magY, fftY, results[SampleStore.Y]);
+        noteAxisPeak(SampleStore.Y);
+        pickPeak(magZ, fftZ, results[SampleStore.Z]);
+        noteAxisPeak(SampleStore.Z);
     }
 
-    public BPMCounter(int recordsToKeep, int updateFrequency) {
-        this.recordsToKeep = recordsToKeep;
-        this.updateFrequency = updateFrequency;
+    /*
+        What the magnitude loop and pickPeak in run_fft_all_axes come to for STRONGEST_BIN, straight
+         off the axis' complex spectrum: SpectralPeaks ranks the bins of the band by squared
+         magnitude, which picks the same peak without a sqrt per bin, and keeps the two strongest
+         peaks in the same pass. The peak, its neighbours and the runner-up are all that
+         findPeak's results and the interpolation need, so only those get a sqrt here.
+
+        The rest of the band's magnitudes are only worked out if an AxisFusion asks for them with
+         axisMagnitude(), MaxPeakFusion never does.
+     */
+    private void pickBandPeak(int axis) {
+        float[] fft = fftBuffers[axis];
+        float[] realFFT = magnitudes[axis];
+        int found = SpectralPeaks.findPeaks(fft, min_index, max_index, 2, bandPeaks, bandPowers);
+        int best = found > 0 ? bandPeaks[0] : min_index;
 
         /*
-            Initialize a buffer of 0's at the start. These will get slowly phased out as real data
-            comes in, but are a nice way to smooth out the startup process
-            Initialize the write head after the 0's.
+            Strongest bin apart from the peak, for TOP_TWO_AVERAGE: if it isn't right next to the
+             peak, nothing around it is stronger, so it's a peak of its own and the runner-up
          */
-        data = new DataPoint[recordsToKeep * HISTORY];
-        for (int i = 0; i < recordsToKeep; i++) {
-            data[i] = new DataPoint(0, 0, 0, -1);
+        int second = found > 1 ? bandPeaks[1] : -1;
+        float secondPower = found > 1 ? bandPowers[1] : Float.NEGATIVE_INFINITY;
+        for (int i = best - 1; i <= best + 1; i += 2) {
+            if (i >= min_index && i < max_index) {
+                float power = SpectralPeaks.power(fft, i);
+                if (power > secondPower || (power == secondPower && i < second)) {
+                    second = i;
+                    secondPower = power;
+                }
+            }
+        }
+
+        lastPeakIndex = best;
+        secondIndex = second;
+        if (found == 0 || !(bandPowers[0] > 0)) {
+            lastConfidence = 0;
+        } else if (found == 1) {
+            lastConfidence = 1;
+        } else {
+            float peak = (float) Math.sqrt(bandPowers[0]);
+            float runnerUp = (float) Math.sqrt(bandPowers[1]);
+            lastConfidence = Math.max(0, Math.min(1, 1 - runnerUp / peak));
+        }
+
+        for (int i = Math.max(best - 1, 0); i <= Math.min(best + 1, recordsToKeep / 2 - 1); i++) {
+            realFFT[i] = (float) Math.sqrt(fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
+        }
+        if (second != -1) {
+            realFFT[second] = (float) Math.sqrt(secondPower);
         }
-        // This starts at 1 for the same reason as in record, see below.
-        dataStart = 1;
-        currPos = recordsToKeep;
+        magnitudesPending[axis] = true;
+
+        interpolatePeak(realFFT, fft, xF, best, results[axis]);
+        noteAxisPeak(axis);
     }
 
     /*
-        Generates the X-axis frequencies based on the time to measure one datapoint (positive only)
-        https://docs.scipy.org/doc/scipy/reference/generated/scipy.fftpack.fftfreq.html
-        Tries to replicate this ^
+        FIXED_POINT version of run_fft for one axis, result in results[axis]. Only fills in the
+         magnitudes pickAxisPeak() reads, up to axisSearchEnd(). Expects updateFrequencyAxis() to
+         have been called for this hop.
      */
-    private void generateXF(float time_for_one_datapoint) {
-        xF = new float[recordsToKeep];
-        for (int i = 0; i < recordsToKeep / 2; i++) {
-            xF[i] = ((float)i / recordsToKeep) / time_for_one_datapoint;
+    private void run_fixed_point(int axis) {
+        if (fixedFft == null) {
+            fixedFft = new FixedPointFFT(recordsToKeep);
         }
+        float[] window = fftBuffers[axis];
+        data.copyWindow(axis, window, recordsToKeep, windowTable);
+        float[] realFFT = magnitudes[axis];
+        realFFT[0] = 0;
+        fixedFft.magnitudes(window, realFFT, 1, axisSearchEnd());
+        pickPeak(realFFT, null, xF, min_index, max_index, axisSpectrumEnd(), results[axis]);
+        noteAxisPeak(axis);
     }
 
     /*
-        Records a data point. If updateFrequency data points have been collected, run an fft and return the result
+        Same thing as run_fft, but reads the magnitudes out of the sliding DFT for that axis instead
+         of transforming the whole window. Only the bins in [min_index, max_index) are filled in,
+         plus one on each side for the peak interpolation, which is all pickPeak looks at. Expects updateFrequencyAxis() to have been called for this hop.
+         The result ends up in results[axis].
      */
-    public float record(float x, float y, float z) {
-        data[currPos] = new DataPoint(x, y, z, -1);
-        currPos += 1;
+    private float[] run_sliding_dft(int axis) {
+        SlidingDFT s = sliding[axis];
+        int from = Math.max(min_index - 1, 0);
+        int to = Math.min(max_index + 1, recordsToKeep / 2);
+        if (!s.covers(from, to) || s.needsResync()) {
+            // Either this is the first hop, the sample rate drifted out of the tracked bins, or
+            // it's been a full window since the last exact computation
+            data.copyWindow(axis, slidingWindow, recordsToKeep);
+            s.seed(slidingWindow, min_index - SLIDING_MARGIN, max_index + SLIDING_MARGIN);
+        }
+        float[] realFFT = magnitudes[axis];
+        float[] complex = fftBuffers[axis];
+        for (int i = from; i < to; i++) {
+            realFFT[i] = s.magnitude(i);
+            complex[2*i] = s.real(i);
+            complex[2*i+1] = s.imag(i);
+        }
+        // Only the band is filled in, so there are no harmonics to look at
+        pickPeak(realFFT, complex, xF, min_index, max_index, 0, results[axis]);
+        noteAxisPeak(axis);
+        return results[axis];
+    }
 
-        // If we've reached a multiple of update frequency, we should run an FFT and send the result back
-        if (currPos % updateFrequency == 0) {
-            // If we're somehow all the way at the end of the array, dump the old data
-            if (currPos == data.length) {
-                clearHistory();
+    /*
+        Makes sure the zoom grid covers the BPM band at the current sample rate (replanning it if
+         the rate drifted too far), then works out the grid's frequencies in beats per second and
+         which grid points are inside [MIN_BPM, MAX_BPM].
+     */
+    private void updateZoomAxis() {
+        float sampleRate = 1 / measured_time_for_one_datapoint;
+        float from = (MIN_BPM / 60.0f) / sampleRate;
+        float to = (MAX_BPM / 60.0f) / sampleRate;
+        if (zoom == null) {
+            zoom = new ZoomSpectrum(recordsToKeep);
+        }
+        if (!zoom.covers(from, to)) {
+            float margin = (to - from) * ZOOM_MARGIN;
+            int points = (int) Math.ceil((MAX_BPM - MIN_BPM) * (1 + 2 * ZOOM_MARGIN) / zoomResolution) + 1;
+            zoom.plan(Math.max(from - margin, 0), Math.min(to + margin, 0.5f), points);
+            if (zoomFrequency == null || zoomFrequency.length != points) {
+                zoomFrequency = new float[points];
+                zoomMagnitudes = new float[3][points];
+                zoomFused = new float[points];
             }
-            System.out.println("Running fft -- dataStart " + dataStart + "counter:" + currPos);
-            float[] resX = run_fft("x");
-            float[] resY = run_fft("y");
-            float[] resZ = run_fft("z");
-            float result = -1;
-            if (resX[1] > resY[1] && resX[1] > resZ[1]) {
-                System.out.println("Going with X (" + resX[1] + ", " + resY[1] + ", " + resZ[1] + ")");
-                result = resX[0];
-            } else if (resY[1] > resZ[1]){
-                System.out.println("Going with Y (" + resX[1] + ", " + resY[1] + ", " + resZ[1] + ")");
-                result = resY[0];
-            } else {
-                System.out.println("Going with Z (" + resX[1] + ", " + resY[1] + ", " + resZ[1] + ")");
-                result = resZ[0];
+        }
+
+        float min_bps = MIN_BPM / 60.0f;
+        float max_bps = MAX_BPM / 60.0f;
+        zoomFrom = -1;
+        zoomTo = zoom.points();
+        for (int k = 0; k < zoom.points(); k++) {
+            zoomFrequency[k] = zoom.frequency(k) * sampleRate;
+            if (zoomFrom == -1 && zoomFrequency[k] >= min_bps) {
+                zoomFrom = k;
             }
+            if (zoomTo == zoom.points() && zoomFrequency[k] > max_bps) {
+                zoomTo = k;
+            }
+        }
+    }
 
-            /*
-                dataStart will never actually represent a full recordsToKeep (there will always be
-                trailing 0s).
-                Only when an FFT is about to happen is the buffer full, after which dataStart is
-                immediately incremented for the next round. Since clearHistory() copies over a full
-                buffer's worth of data, we then increment it to 1 for the 1..(1+width) step
-             */
-            dataStart += 1;
-            return result;
+    /*
+        Same thing as run_fft, but on the zoom grid. The grid isn't made of DFT bins, so QUINN and
+         JACOBSEN don't apply and fall back to PARABOLIC (which works well on a grid this dense).
+         Expects updateZoomAxis() to have been called for this hop. The result ends up in results[axis].
+     */
+    private float[] run_zoom(int axis) {
+        float[] window = fftBuffers[axis];
+        data.copyWindow(axis, window, recordsToKeep, windowTable);
+        zoom.transform(window, zoomMagnitudes[axis]);
+        pickPeak(zoomMagnitudes[axis], null, zoomFrequency, zoomFrom, zoomTo, 0, results[axis]);
+        noteAxisPeak(axis);
+        return results[axis];
+    }
+
+    /*
+        Sets up the WELCH plan and buffers for the current segment length, picks up the window
+         table for it, and works out the segment's frequency axis and BPM band when the sample
+         rate changed
+     */
+    private void updateWelchAxis() {
+        if (welchFft == null) {
+            welchFft = new FloatFFT_1D(welchSegment);
+            welchBuffers = new float[3][welchSegment];
+            welchPower = new float[3][welchSegment / 2];
+            welchMagnitudes = new float[3][welchSegment / 2];
+            welchFused = new float[welchSegment / 2];
+            welchFrequency = new float[welchSegment / 2];
+            welchAxisTime = -1;
+        }
+        welchWindow = windowTable == null ? null : windowFunction.table(welchSegment);
+        if (welchAxisTime == measured_time_for_one_datapoint) {
+            return;
+        }
+        welchAxisTime = measured_time_for_one_datapoint;
+
+        float min_bps = MIN_BPM / 60.0f;
+        float max_bps = MAX_BPM / 60.0f;
+        welchFrom = -1;
+        welchTo = -1;
+        for (int i = 0; i < welchSegment / 2; i++) {
+            welchFrequency[i] = ((float)i / welchSegment) / measured_time_for_one_datapoint;
+            if (welchFrom == -1 && welchFrequency[i] > min_bps) {
+                welchFrom = i;
+            }
+            if (welchTo == -1 && welchFrequency[i] > max_bps) {
+                welchTo = i;
+            }
+        }
+        if (welchFrom == -1) {
+            welchFrom = welchSegment / 2;
+        }
+        if (welchTo == -1) {
+            welchTo = welchSegment / 2;
         }
-        return -1;
     }
 
     /*
-        Moves everything from the end of the array back to the start of the array. Lets the app run
-        for an arbitrary amount of time without using up increasing amounts of memory
+        WELCH estimate for one axis: transforms the newest welchSegment samples (windowed with
+         the counter's WindowFunction, HANN is the classic choice), folds their power spectrum
+         into the running average and picks the peak of that. The segments of consecutive hops
+         overlap by welchSegment - updateFrequency samples.
+
+        Expects updateWelchAxis() to have been called for this hop. The result ends up in
+         results[axis].
      */
-    private void clearHistory() {
-        DataPoint[] d2 = new DataPoint[recordsToKeep * HISTORY];
-        if (recordsToKeep >= 0) {
-            System.arraycopy(data, recordsToKeep * (HISTORY - 1), d2, 0, recordsToKeep);
+    private float[] run_welch(int axis) {
+        float[] segment = welchBuffers[axis];
+        data.copyWindow(axis, segment, welchSegment, welchWindow);
+        welchFft.realForward(segment);
+
+        float[] power = welchPower[axis];
+        float[] realFFT = welchMagnitudes[axis];
+        // The very first segment starts the average, rather than averaging it with zeros
+        float a = welchPrimed ? welchAveraging : 1;
+        for (int i = 0; i < welchSegment / 2; i++) {
+            float p = segment[2*i]*segment[2*i] + segment[2*i+1]*segment[2*i+1];
+            power[i] += a * (p - power[i]);
+            realFFT[i] = (float)Math.sqrt(power[i]);
+        }
+
+        if (welchTo <= welchFrom) {
+            results[axis][0] = 0;
+            results[axis][1] = 0;
+            lastPeakIndex = -1;
+            lastConfidence = 0;
+        } else {
+            // The average has no phase, so QUINN and JACOBSEN fall back to PARABOLIC
+            pickPeak(realFFT, null, welchFrequency, welchFrom, welchTo, welchSegment / 2, results[axis]);
         }
-        data = d2;
-        dataStart = 0;
-        currPos = recordsToKeep;
+        noteAxisPeak(axis);
+        return results[axis];
     }
 
     /*
-        Runs an fft on the "x", "y", or "z" dimension.
+        Autocorrelation estimate for one axis:
 
-        Returns a tuple (technically a two-item array) with [frequency, weight]
+            r = realInverse(|realForward(x - mean)|^2)
 
-        Higher weight means there was a bigger peak at that point and it's more confident that
-         the frequency was correct. Frequency is measured in beats per second, the Main Activity
-         does all the scaling/rounding/etc.
+        r[lag] is how well the window lines up with itself shifted by lag samples. A beat at
+         f beats per second repeats every (sample rate / f) samples, so the lags for MAX_BPM down
+         to MIN_BPM are the only ones we look at.
+
+        The window is zero padded before the transform, so this is a linear autocorrelation:
+         without the padding it's circular, and a periodic window lines up with its own
+         wrap-around at every multiple of the period just as well as at the period itself. Each
+         lag is then divided by the N - lag samples that overlap at it, so a repeat isn't
+         penalized for being further out.
+
+        It's worked out at every half sample of lag rather than every sample: the power spectrum
+         of the window padded to 2N goes into the bottom of a 4N point inverse transform, which
+         is the same autocorrelation band-limited-interpolated to twice the rate. After
+         decimation a fast beat is only 3 or 4 samples long, and at whole samples the peak at
+         its period can fall far enough between two lags to come out weaker than the one at
+         twice the period. Both transforms use the same 4N plan (the forward one on the window
+         padded to 4N, keeping every other bin).
+
+        Every multiple of the beat period still has a peak about as tall as the one at the
+         period. So instead of the strongest lag this takes the shortest local maximum within
+         ACF_SHORTEST_FRACTION of it. Only real local maxima count, see isLagPeak: the ends of
+         the lag range are often just the slope of the peak at lag 0.
+
+        Power above twice MAX_BPM is dropped before the inverse transform. Wrist tremor (8-12 Hz)
+         is easily as strong as the beat itself without decimation, and its own repeats every
+         1/9 s or so cancel the beat's at some multiples of the period and add to it at others.
+         Twice MAX_BPM keeps the second harmonic of every tempo in range. With decimation the
+         decimator's transition band goes too: a harmonic aliased into it (5.6 Hz shows up at
+         4.4 Hz at 10 Hz) has the same effect as the tremor. That can leave nothing but the
+         band itself (at 10 Hz the clean part ends right at MAX_BPM), and the roll-off then
+         starts just past MAX_BPM instead of taking the top of the band with it.
+
+        The lag only decides which octave the beat is in. Even at half samples a lag is a coarse
+         measure of a fast beat after decimation (a half sample is 20-odd BPM at 168 BPM and
+         10 Hz), so the frequency itself comes from the strongest bin of the window's magnitude
+         spectrum within ACF_REFINE_RANGE of sample rate / lag, with a parabolic refinement. That
+         spectrum falls out of the forward transform anyway, and it also stays in
+         axisMagnitude() for strategies that want it. The result ends up in results[axis], with
+         r[lag] as the weight. The confidence is 1 - (strongest repeat at a lag that isn't near a
+         multiple of the chosen one) / r[chosen lag].
      */
-    public float[] run_fft(String dimension) {
-        float[] fft = new float[recordsToKeep];
-        for (int i = 0; i < recordsToKeep; i++) {
-            if (data[dataStart * updateFrequency + i] == null) {
-                // This should never happen
-                return new float[]{};
+    private float[] run_autocorrelation(int axis) {
+        int n = recordsToKeep;
+        if (acfFft == null) {
+            acfFft = new FloatFFT_1D(4 * n);
+            acfBuffers = new float[3][4 * n];
+        }
+        float[] acf = acfBuffers[axis];
+        data.copyWindow(axis, acf, n);
+
+        float mean = 0;
+        for (int i = 0; i < n; i++) {
+            mean += acf[i];
+        }
+        mean /= n;
+        for (int i = 0; i < n; i++) {
+            acf[i] -= mean;
+        }
+        Arrays.fill(acf, n, 4 * n, 0);
+
+        acfFft.realForward(acf);
+
+        /*
+            Bin 2k of the 4N point spectrum is bin k of the 2N point one. Its power goes to bin k
+             of the inverse, in place (bin k is written after bin 2k is read), and everything from
+             bin N up is zero. Bin 4k is bin k of the window's own N point spectrum.
+         */
+        float sampleRate = 1 / measured_time_for_one_datapoint;
+        // 2N point bins are sampleRate / 2N apart, top is MAX_BPM's
+        int top = (int) Math.ceil(MAX_BPM / 60f * 2 * n / sampleRate);
+        int cutoff = Math.min(2 * top, n);
+        if (decimator != null) {
+            // The top third of the spectrum is the decimator's transition band, see Decimator
+            cutoff = Math.min(cutoff, n * 2 / 3);
+        }
+        // Rolled off over the top quarter instead of cut dead, which would ring in the lags, but
+        // never below MAX_BPM
+        int rolloff = cutoff * 3 / 4;
+        if (rolloff < top + 1) {
+            rolloff = top + 1;
+            cutoff = Math.min(Math.max(cutoff, rolloff + 2), n);
+        }
+        float[] realFFT = magnitudes[axis];
+        acf[0] = acf[0] * acf[0];
+        for (int k = 1; k < n; k++) {
+            float power = acf[4*k]*acf[4*k] + acf[4*k+1]*acf[4*k+1];
+            if (k >= cutoff) {
+                acf[2*k] = 0;
+            } else if (k > rolloff) {
+                float c = (float) Math.cos(Math.PI / 2 * (k - rolloff) / (cutoff - rolloff));
+                acf[2*k] = power * c * c;
             } else {
-                switch (dimension) {
-                    case "x":
-                        fft[i] = data[dataStart * updateFrequency + i].x;
-                        break;
-                    case "y":
-                        fft[i] = data[dataStart * updateFrequency + i].y;
-                        break;
-                    case "z":
-                        fft[i] = data[dataStart * updateFrequency + i].z;
-                        break;
-                }
+                acf[2*k] = power;
+            }
+            acf[2*k+1] = 0;
+            if ((k & 1) == 0) {
+                realFFT[k / 2] = (float)Math.sqrt(power);
             }
         }
-        float time_for_one_datapoint =
-                (float)(data[dataStart * updateFrequency + recordsToKeep - 1].timestamp - data[dataStart * updateFrequency].timestamp) / (recordsToKeep-1);
+        // acf[1] is the 4N point Nyquist bin
+        acf[1] = 0;
+        Arrays.fill(acf, 2 * n, 4 * n, 0);
 
+        acfFft.realInverse(acf, true);
 
-        // milliseconds to seconds
-        time_for_one_datapoint /= 1000;
+        // acf[j] is now the autocorrelation at a lag of j / 2 samples
+        int minLag = Math.max((int) Math.floor(sampleRate * 120 / MAX_BPM), 2);
+        int maxLag = Math.min((int) Math.ceil(sampleRate * 120 / MIN_BPM), n - 2);
+        float[] result = results[axis];
+        if (maxLag <= minLag) {
+            result[0] = 0;
+            result[1] = 0;
+            lastPeakIndex = -1;
+            lastConfidence = 0;
+            noteAxisPeak(axis);
+            return result;
+        }
+        // Normalize two lags past each end of the range, so the ends can be checked for being peaks
+        for (int j = minLag - 2; j <= maxLag + 2; j++) {
+            acf[j] *= n / (n - j / 2f);
+        }
 
-        generateXF(time_for_one_datapoint);
-        System.out.println("xF: " + Arrays.toString(xF));
+        int strongest = -1;
+        for (int j = minLag; j <= maxLag; j++) {
+            if (isLagPeak(acf, j, minLag, maxLag) && (strongest == -1 || acf[j] > acf[strongest])) {
+                strongest = j;
+            }
+        }
+        if (strongest == -1 || !(acf[strongest] > 0)) {
+            // Nothing in the range repeats at all
+            result[0] = 0;
+            result[1] = 0;
+            lastPeakIndex = -1;
+            lastConfidence = 0;
+            noteAxisPeak(axis);
+            return result;
+        }
+        int best_lag = strongest;
+        for (int j = minLag; j < strongest; j++) {
+            if (isLagPeak(acf, j, minLag, maxLag) && acf[j] >= ACF_SHORTEST_FRACTION * acf[strongest]) {
+                best_lag = j;
+                break;
+            }
+        }
 
-        float min_bps = MIN_BPM / 60.0f;
-        float max_bps = MAX_BPM / 60.0f;
+        float rival = 0;
+        for (int j = minLag; j <= maxLag; j++) {
+            float multiple = (float) j / best_lag;
+            if (Math.abs(multiple - Math.round(multiple)) > 0.15f && isLagPeak(acf, j, minLag, maxLag)) {
+                rival = Math.max(rival, acf[j]);
+            }
+        }
+        lastPeakIndex = best_lag / 2;
+        lastConfidence = Math.max(0, Math.min(1, 1 - rival / acf[best_lag]));
 
-        int min_index = -1;
-        int max_index = -1;
+        float delta = PeakInterpolator.parabolic(acf, best_lag);
+        float lagFrequency = sampleRate * 2 / (best_lag + delta);
+        result[0] = lagFrequency;
+        result[1] = acf[best_lag];
 
         /*
-            We're only interested in results that correspond to reasonable BPM values
+            The bins to refine in, kept inside [min_index, max_index). A lag at either end of the
+             range can be a little past MAX_BPM or MIN_BPM, and then the window around it is
+             mostly outside the band, or even all of it; the bins at that end of the band are
+             still where the answer is.
          */
-        for (int i = 0; i < xF.length; i++) {
-            if (min_index == -1 && xF[i] > min_bps) {
-                min_index = i;
-            }
-            if (max_index == -1 && xF[i] > max_bps) {
-                max_index = i;
+        float binWidth = xF[1] - xF[0];
+        int from = Math.max((int) Math.floor(lagFrequency * (1 - ACF_REFINE_RANGE) / binWidth), min_index);
+        int to = Math.min((int) Math.ceil(lagFrequency * (1 + ACF_REFINE_RANGE) / binWidth) + 1, max_index);
+        from = Math.min(from, max_index - 1);
+        to = Math.max(to, min_index + 1);
+        int bin = from;
+        for (int i = from + 1; i < to; i++) {
+            if (realFFT[i] > realFFT[bin]) {
+                bin = i;
             }
         }
+        result[0] = xF[bin] + PeakInterpolator.parabolic(realFFT, bin) * binWidth;
+        if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+            diagnostics.log(DiagnosticsSink.DEBUG, "Best lag: " + best_lag / 2f + " (+" + delta / 2 + ") with score " + acf[best_lag]
+                    + ", strongest at " + strongest / 2f + ", " + lagFrequency + " -- result: " + result[0]);
+        }
+        noteAxisPeak(axis);
+        return result;
+    }
 
-        FloatFFT_1D fftDo = new FloatFFT_1D(recordsToKeep);
-        fftDo.realForward(fft);
+    /*
+        Whether lag j of acf counts as a peak in [minLag, maxLag]: a local maximum, or an end of
+         the range with the local maximum just past it. A beat right at MAX_BPM or MIN_BPM lands
+         on either side of the end of the range as often as not, and has to count either way; the
+         slope down from lag 0, which never turns back up, doesn't. Reads two lags past the ends.
+     */
+    private static boolean isLagPeak(float[] acf, int j, int minLag, int maxLag) {
+        if (acf[j] > acf[j - 1] && acf[j] >= acf[j + 1]) {
+            return true;
+        }
+        if (j == minLag) {
+            return acf[j] >= acf[j + 1] && acf[j - 1] > acf[j - 2];
+        }
+        if (j == maxLag) {
+            return acf[j] > acf[j - 1] && acf[j + 1] >= acf[j + 2];
+        }
+        return false;
+    }
 
-        /*
-            Combine the real and imaginary parts into one magnitude
-         */
-        float[] realFFT = new float[recordsToKeep / 2];
-        for (int i = 0; i < recordsToKeep/2; i++) {
-            realFFT[i] = (float)Math.sqrt(fft[2*i]*fft[2*i] + fft[2*i+1]*fft[2*i+1]);
+    /*
+        Remembers where the last pickPeak landed for an axis, for the hop trace and getConfidence()
+     */
+    private void noteAxisPeak(int axis) {
+        axisPeakIndex[axis] = lastPeakIndex;
+        axisWeight[axis] = results[axis][1];
+        axisConfidence[axis] = lastConfidence;
+    }
+
+    /*
+        Everything below here is what the AxisFusion strategies get to work with. All of it reuses
+         the counter's buffers, so nothing is allocated per hop.
+     */
+
+    /*
+        Runs the spectrum of all three axes with the current SpectrumMode. Per axis results and
+         magnitudes are then available from axisResult() and axisMagnitude().
+     */
+    void analyzeAllAxes() {
+        Arrays.fill(magnitudesPending, false);
+        if (spectrumMode == SpectrumMode.SLIDING_DFT) {
+            run_sliding_dft(SampleStore.X);
+            run_sliding_dft(SampleStore.Y);
+            run_sliding_dft(SampleStore.Z);
+        } else if (spectrumMode == SpectrumMode.ZOOM) {
+            updateZoomAxis();
+            run_zoom(SampleStore.X);
+            run_zoom(SampleStore.Y);
+            run_zoom(SampleStore.Z);
+        } else if (spectrumMode == SpectrumMode.AUTOCORRELATION) {
+            run_autocorrelation(SampleStore.X);
+            run_autocorrelation(SampleStore.Y);
+            run_autocorrelation(SampleStore.Z);
+        } else if (spectrumMode == SpectrumMode.WELCH) {
+            updateWelchAxis();
+            run_welch(SampleStore.X);
+            run_welch(SampleStore.Y);
+            run_welch(SampleStore.Z);
+            welchPrimed = true;
+        } else if (spectrumMode == SpectrumMode.FIXED_POINT && (recordsToKeep & (recordsToKeep - 1)) == 0) {
+            run_fixed_point(SampleStore.X);
+            run_fixed_point(SampleStore.Y);
+            run_fixed_point(SampleStore.Z);
+        } else {
+            run_fft_all_axes();
+        }
+    }
+
+    float[] axisResult(int axis) {
+        return results[axis];
+    }
+
+    /*
+        Per axis magnitudes from the last analyzeAllAxes(). These are on the same grid as the
+         spectrum mode uses, which isn't the recordsToKeep point FFT bins in ZOOM or WELCH mode,
+         so anything built from them should go through axisBandStart/End(), axisFusedMagnitude()
+         and pickAxisPeak() rather than the bin based versions.
+     */
+    float[] axisMagnitude(int axis) {
+        switch (spectrumMode) {
+            case ZOOM:
+                return zoomMagnitudes[axis];
+            case WELCH:
+                return welchMagnitudes[axis];
+            default:
+                if (magnitudesPending[axis]) {
+                    float[] fft = fftBuffers[axis];
+                    float[] realFFT = magnitudes[axis];
+                    int to = axisSearchEnd();
+                    for (int i = Math.max(min_index - 1, 0); i < to; i++) {
+                        realFFT[i] = (float) Math.sqrt(fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
+                    }
+                    magnitudesPending[axis] = false;
+                }
+                return magnitudes[axis];
+        }
+    }
+
+    int axisBandStart() {
+        switch (spectrumMode) {
+            case ZOOM:
+                return zoomFrom;
+            case WELCH:
+                return welchFrom;
+            default:
+                return min_index;
+        }
+    }
+
+    int axisBandEnd() {
+        switch (spectrumMode) {
+            case ZOOM:
+                return zoomTo;
+            case WELCH:
+                return welchTo;
+            default:
+                return max_index;
+        }
+    }
+
+    /*
+        Scratch space for combining the axisMagnitude()s, as long as they are
+     */
+    float[] axisFusedMagnitude() {
+        switch (spectrumMode) {
+            case ZOOM:
+                return zoomFused;
+            case WELCH:
+                return welchFused;
+            default:
+                return fusedMagnitude;
+        }
+    }
+
+    /*
+        How far up axisMagnitude() the spectrum is filled in, 0 if it's only the band
+     */
+    private int axisSpectrumEnd() {
+        switch (spectrumMode) {
+            case ZOOM:
+            case SLIDING_DFT:
+                return 0;
+            case WELCH:
+                return welchSegment / 2;
+            default:
+                return recordsToKeep / 2;
+        }
+    }
+
+    /*
+        End of the range of axisMagnitude() indices pickAxisPeak() will read: the band plus one
+         for the interpolation, and up to the highest harmonic it scores with for the harmonic
+         PeakSearch modes. Anything combining the axes only needs to fill in below this.
+     */
+    int axisSearchEnd() {
+        int to = axisBandEnd();
+        int reach = harmonicReach(axisSpectrumEnd());
+        int harmonics = harmonicsFor(axisBandStart(), to, reach);
+        return Math.min(PeakFinder.searchEnd(to, harmonics, reach), axisFusedMagnitude().length);
+    }
+
+    /*
+        pickPeak over the grid axisMagnitude() is on
+     */
+    float[] pickAxisPeak(float[] magnitude, float[] complex, float[] result) {
+        switch (spectrumMode) {
+            case ZOOM:
+                return pickPeak(magnitude, null, zoomFrequency, zoomFrom, zoomTo, 0, result);
+            case WELCH:
+                return pickPeak(magnitude, null, welchFrequency, welchFrom, welchTo, welchSegment / 2, result);
+            default:
+                return pickPeak(magnitude, complex, xF, min_index, max_index, axisSpectrumEnd(), result);
         }
+    }
+
+    /*
+        Copies the current window of one axis into that axis' work array and returns it
+     */
+    float[] window(int axis) {
+        data.copyWindow(axis, fftBuffers[axis], recordsToKeep);
+        return fftBuffers[axis];
+    }
+
+    float[] fusedWindow() {
+        return fusedWindow;
+    }
+
+    float[] fusedMagnitude() {
+        return fusedMagnitude;
+    }
+
+    /*
+        Lets a strategy say which axis its estimate came from, for the hop trace
+     */
+    void decideAxis(int axis) {
+        decidedAxis = axis;
+    }
 
-        int temp_index = min_index;
-        int best_index = min_index;
-        int second_best_index = min_index;
+    DiagnosticsSink diagnostics() {
+        return diagnostics;
+    }
 
-        for (int i = min_index; i < max_index; i++) {
-            if (Math.abs(realFFT[i]) > Math.abs(realFFT[temp_index])) {
-                temp_index = i;
+    /*
+        Windows and FFTs signal in place (it has to be recordsToKeep long) and returns its magnitude
+         spectrum.
+         This is always a full FFT, even in SLIDING_DFT mode, since a fused signal doesn't have a
+         sliding DFT of its own.
+     */
+    float[] spectrumOf(float[] signal) {
+        if (windowTable != null) {
+            for (int i = 0; i < recordsToKeep; i++) {
+                signal[i] *= windowTable[i];
             }
         }
-        best_index = temp_index;
-        temp_index = min_index;
-        for (int i = min_index; i < max_index; i++) {
-            if (Math.abs(realFFT[i]) > Math.abs(realFFT[temp_index]) && i != best_index) {
-                temp_index = i;
+        fftDo.realForward(signal);
+        for (int i = 0; i < recordsToKeep/2; i++) {
+            fusedMagnitude[i] = (float)Math.sqrt(signal[2*i]*signal[2*i] + signal[2*i+1]*signal[2*i+1]);
+        }
+        return fusedMagnitude;
+    }
+
+    /*
+        The BPM band for this hop, as bin indices [bandStart, bandEnd)
+     */
+    int bandStart() {
+        return min_index;
+    }
+
+    int bandEnd() {
+        return max_index;
+    }
+
+    /*
+        Finds the strongest frequency in [min_index, max_index) of a magnitude spectrum
+
+        complex is the spectrum the magnitudes came from (realForward layout), used by the QUINN
+         and JACOBSEN interpolations. It can be null if there isn't one, e.g. for summed spectra.
+         realFFT has to cover the whole recordsToKeep point spectrum for the harmonic PeakSearch
+         modes.
+
+        Fills in and returns result as a tuple (technically a two-item array) with [frequency, weight]
+     */
+    float[] pickPeak(float[] realFFT, float[] complex, float[] result) {
+        return pickPeak(realFFT, complex, xF, min_index, max_index, recordsToKeep / 2, result);
+    }
+
+    /*
+        pickPeak over any evenly spaced frequency axis freq (beats per second), looking at
+         indices [from, to). realFFT holds real magnitudes up to spectrumEnd, which is where the
+         harmonic PeakSearch modes find their harmonics; 0 if only [from - 1, to] is filled in.
+     */
+    float[] pickPeak(float[] realFFT, float[] complex, float[] freq, int from, int to, int spectrumEnd, float[] result) {
+        int reach = harmonicReach(spectrumEnd);
+        int best_index = findPeak(realFFT, from, to, harmonicsFor(from, to, reach), reach);
+        return interpolatePeak(realFFT, complex, freq, best_index, result);
+    }
+
+    /*
+        The rest of pickPeak once the peak is found: refines best_index with the current
+         PeakInterpolation and fills in result. Only reads realFFT at best_index, the bins either
+         side of it and secondIndex.
+     */
+    private float[] interpolatePeak(float[] realFFT, float[] complex, float[] freq, int best_index, float[] result) {
+        if (peakInterpolation != PeakInterpolation.TOP_TWO_AVERAGE) {
+            /*
+                freq is evenly spaced, so a fractional bin maps straight to a frequency
+             */
+            float delta = PeakInterpolator.offset(peakInterpolation, realFFT, complex, best_index);
+            float res = freq[best_index] + delta * (freq[1] - freq[0]);
+            if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+                diagnostics.log(DiagnosticsSink.DEBUG, "Highest frequency: " + freq[best_index] + " with score " + realFFT[best_index]
+                        + ", refined by " + delta + " bins -- result: " + res);
             }
+            result[0] = res;
+            result[1] = Math.abs(realFFT[best_index]);
+            return result;
         }
-        second_best_index = temp_index;
 
-        float highest_freq = xF[best_index];
-        float second_highest_freq = xF[second_best_index];
+        // Found along the way by findPeak, no second pass needed
+        int second_best_index = secondIndex == -1 ? best_index : secondIndex;
+
+        float highest_freq = freq[best_index];
+        float second_highest_freq = freq[second_best_index];
         float weight_1st = Math.abs(realFFT[best_index]);
         float weight_2nd = Math.abs(realFFT[second_best_index]);
-        System.out.println("Highest frequency: " + highest_freq + " with score " + weight_1st);
-        System.out.println("2nd highest frequency: " + second_highest_freq + " with score " + weight_2nd);
+        if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+            diagnostics.log(DiagnosticsSink.DEBUG, "Highest frequency: " + highest_freq + " with score " + weight_1st);
+            diagnostics.log(DiagnosticsSink.DEBUG, "2nd highest frequency: " + second_highest_freq + " with score " + weight_2nd);
+        }
 
         /*
             If the top two frequencies are adjacent, this means the actual peak is probably somewhere in the middle
@@ -273,9 +1734,58 @@ public class BPMCounter {
          */
         if (Math.abs(second_best_index - best_index) == 1) {
             float res = (highest_freq * weight_1st + second_highest_freq * weight_2nd)/(weight_1st + weight_2nd);
-            System.out.println("1 apart, averaging -- result: " + res);
-            return new float[]{res, weight_1st};
+            if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+                diagnostics.log(DiagnosticsSink.DEBUG, "1 apart, averaging -- result: " + res);
+            }
+            result[0] = res;
+            result[1] = weight_1st;
+            return result;
+        }
+        result[0] = highest_freq;
+        result[1] = weight_1st;
+        return result;
+    }
+
+    /*
+        How far up a spectrum filled in up to spectrumEnd the harmonics can be read, see
+         PeakFinder.reach
+     */
+    private int harmonicReach(int spectrumEnd) {
+        // The top third of the spectrum is the decimator's transition band, see Decimator
+        int clean = decimator == null ? spectrumEnd : spectrumEnd * 2 / 3;
+        return PeakFinder.reach(clean, spectrumEnd);
+    }
+
+    /*
+        How many harmonics (counting the fundamental itself) the indices in [from, to) are scored
+         with at most, see PeakFinder.harmonicsFor. 1 means no harmonics, i.e. the plain
+         strongest bin.
+     */
+    private int harmonicsFor(int from, int to, int reach) {
+        if (peakSearch == PeakSearch.STRONGEST_BIN) {
+            return 1;
+        }
+        int harmonics = PeakFinder.harmonicsFor(from, to, reach);
+        if ((harmonics == 1) != harmonicsFellBack) {
+            harmonicsFellBack = harmonics == 1;
+            if (harmonicsFellBack && diagnostics.isEnabled(DiagnosticsSink.INFO)) {
+                String why = reach < 0 ? "there's no spectrum past the BPM band in " + spectrumMode
+                        : "the top of the BPM band (bin " + (to - 1) + ") has no 2nd harmonic below bin " + reach;
+                diagnostics.log(DiagnosticsSink.INFO, peakSearch + " is going by the strongest bin alone: " + why);
+            }
         }
-        return new float[]{highest_freq, weight_1st};
+        return harmonics;
+    }
+
+    /*
+        Finds the peak in [from, to) with the current PeakSearch, see PeakFinder. Leaves behind
+         lastPeakIndex (for the hop trace), secondIndex (for TOP_TWO_AVERAGE) and lastConfidence.
+     */
+    private int findPeak(float[] values, int from, int to, int harmonics, int reach) {
+        int best = peaks.find(values, from, to, harmonics, reach, peakSearch == PeakSearch.HARMONIC_PRODUCT);
+        lastPeakIndex = best;
+        secondIndex = peaks.second();
+        lastConfidence = peaks.confidence();
+        return best;
     }
 }
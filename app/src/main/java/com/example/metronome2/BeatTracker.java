@@ -0,0 +1,132 @@
+package com.example.metronome2;
+
+/*
+    Says when the beats are, not just how fast they come. BPMCounter only knows the tempo, once
+     per hop and averaged over a window that's many seconds long; this follows the phase of the
+     beat frame by frame, so the app can pulse on the beat with about one OnsetDetector frame
+     (50 ms) of delay.
+
+    It's a phase-locked loop:
+        - the phase (in beats) advances by tempo * elapsed time every frame, with the tempo taken
+            from the counter's estimates (setTempo, called by the counter on every hop)
+        - whenever OnsetDetector finds an onset within CAPTURE of a whole beat, the phase gets
+            pulled PHASE_GAIN of the way towards it. Onsets further off (off-beat movements)
+            are ignored.
+        - every time the phase passes a whole beat, the Listener gets onBeat()
+
+    It starts out unlocked and locks onto the first onset once there's a tempo, calling that a
+     beat. If LOST_BEATS beats go by without an onset near any of them (the wrist stopped, or
+     the rhythm changed), it unlocks and waits for the next onset again instead of ticking on.
+
+    Attach it with BPMCounter.setBeatTracker(). Everything here runs on the counter's thread,
+     onBeat() included; the getters can be called from anywhere.
+ */
+public class BeatTracker {
+    public interface Listener {
+        /*
+            Called on the counter's thread at the end of the frame a beat fell in, with the
+             time within that frame the beat was at (same clock as the samples)
+         */
+        void onBeat(long timestampNanos);
+    }
+
+    // How far from a whole beat (as a fraction of a beat) an onset can be and still count
+    private static final double CAPTURE = 0.25;
+    // Fraction of the phase error corrected per onset
+    private static final double PHASE_GAIN = 0.25;
+    private static final int LOST_BEATS = 8;
+
+    private final float minConfidence;
+    private final Listener listener;
+    private final OnsetDetector onsets = new OnsetDetector();
+
+    private volatile float tempo = 0;
+    private volatile boolean locked = false;
+    private volatile float phase = 0;
+    private double beatPhase = 0;
+    private long lastTime;
+    private int beatsWithoutOnset = 0;
+
+    /*
+        minConfidence: counter estimates below this (see BPMCounter.getConfidence) don't change
+         the tempo
+     */
+    public BeatTracker(float minConfidence, Listener listener) {
+        this.minConfidence = minConfidence;
+        this.listener = listener;
+    }
+
+    /*
+        New tempo estimate from the counter, in beats per second
+     */
+    void setTempo(float beatsPerSecond, float confidence) {
+        if (beatsPerSecond > 0 && confidence >= minConfidence) {
+            tempo = beatsPerSecond;
+        }
+    }
+
+    /*
+        One sample, before decimation (onsets are much sharper than the BPM band)
+     */
+    void push(float x, float y, float z, long timestamp) {
+        if (onsets.push(x, y, z, timestamp)) {
+            frame(onsets.time(), onsets.isOnset());
+        }
+    }
+
+    private void frame(long time, boolean onset) {
+        float f = tempo;
+        // An onset could have been anywhere in its frame, so it counts as the middle of it
+        double halfFrame = f * OnsetDetector.FRAME_NANOS / 2e9;
+        if (!locked) {
+            if (onset && f > 0) {
+                locked = true;
+                beatPhase = halfFrame;
+                beatsWithoutOnset = 0;
+                lastTime = time;
+                listener.onBeat(time - OnsetDetector.FRAME_NANOS / 2);
+            }
+            return;
+        }
+
+        beatPhase += f * (time - lastTime) / 1e9;
+        lastTime = time;
+        if (onset) {
+            double error = beatPhase - halfFrame;
+            error -= Math.rint(error);
+            if (Math.abs(error) < CAPTURE) {
+                beatPhase -= PHASE_GAIN * error;
+                beatsWithoutOnset = 0;
+            }
+        }
+        if (beatPhase >= 1) {
+            beatPhase -= Math.floor(beatPhase);
+            beatsWithoutOnset += 1;
+            if (beatsWithoutOnset > LOST_BEATS) {
+                locked = false;
+            } else {
+                // Back to where in the frame the phase actually passed the beat
+                listener.onBeat(time - (long) (beatPhase / f * 1e9));
+            }
+        }
+        phase = (float) beatPhase;
+    }
+
+    /*
+        Tempo the phase is advancing at, in beats per second, 0 before the first estimate
+     */
+    public float getTempo() {
+        return tempo;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    /*
+        Where in the beat the last frame was, from 0 (on the beat) to 1
+     */
+    public float getPhase() {
+        return phase;
+    }
+}
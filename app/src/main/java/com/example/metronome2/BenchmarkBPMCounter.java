@@ -0,0 +1,588 @@
+package com.example.metronome2;
+
+import org.jtransforms.fft.FloatFFT_1D;
+import org.jtransforms.utils.CommonUtils;
+import org.jtransforms.utils.SpectralPeaks;
+import org.visnow.jlargearrays.ConcurrencyUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Microbenchmarks for the BPMCounter hot path, in the same static-main style as the JTransforms
+     benchmarks (BenchmarkFloatFFT and friends) rather than JMH: JMH needs its annotation
+     processor and a separate Gradle source set, neither of which this Android module has, and
+     these loops are simple enough that warmup + repeated timing gets stable numbers anyway.
+     Allocation is measured per operation with the same ThreadMXBean counter ReplayHarness uses,
+     which stands in for JMH's GC profiler.
+
+        java -cp <classes> com.example.metronome2.BenchmarkBPMCounter [niter] [doWarmup] [windows...]
+
+    For every window size (recordsToKeep) it times:
+        record     - BPMCounter.record() in steady state, averaged over every call (most just
+                      store the sample, every hop-th one runs the spectrum), for each hop size
+        run_fft    - run_fft(axis) on one axis: window copy, FFT, magnitudes, peak pick
+        peak       - pickPeak over a magnitude spectrum on its own
+        bandpeak   - finding the strongest peak and the runner-up in the BPM band of one complex
+                      spectrum, the way run_fft_all_axes used to (a sqrt for each of the
+                      window/2 bins, then PeakFinder over the band's magnitudes) and with
+                      SpectralPeaks (squared magnitudes of the band's bins only, a sqrt for
+                      the two peaks)
+        legacy     - the original storage design for comparison: a new DataPoint object per
+                      sample in a recordsToKeep * 32 array, gathered into a freshly allocated
+                      float[] per axis per hop, with clearHistory() copying the last window to a
+                      new array when it fills up
+        store      - the same work with SampleStore: add() per sample, copyWindow() per axis
+                      per hop
+        clear      - one legacy clearHistory() on its own
+        streams    - MultiStreamBPMCounter with STREAMS streams at hop 16: push a hop's worth of
+                      samples into every stream, then process(), on 1 thread and on all of them.
+                      An op is one stream's hop, pushes included, and it also reports how many
+                      20 Hz streams that is per core.
+        fixed      - one axis' spectrum the FULL_FFT way (realForward and a sqrt per bin) and the
+                      FIXED_POINT way (FixedPointFFT over the bins the peak search reads). Then
+                      how often two counters at hop 32, one in each mode, came up with estimates
+                      within 1 BPM of each other on the same input, and a count of the arithmetic
+                      each mode does per axis per hop. The JVM can't say anything about energy, so the counts are
+                      what to go by there: on a watch's cores an integer multiply-add is usually
+                      cheaper than a float one, and a sqrt far more expensive than either.
+
+    Each line reports ns/op and bytes allocated per op.
+ */
+public class BenchmarkBPMCounter {
+    private static int niter = 200;
+
+    private static boolean doWarmup = true;
+
+    private static int[] windows = new int[]{256, 512, 1024, 2048, 4096};
+
+    private static int[] hops = new int[]{8, 32, 128};
+
+    private static final int STREAMS = 1024;
+    private static final int STREAM_HOP = 16;
+    private static final float STREAM_RATE = 20;
+
+    // How many samples of synthetic input to cycle through
+    private static final int INPUT = 1 << 16;
+
+    private static float[] inputX;
+    private static float[] inputY;
+    private static float[] inputZ;
+
+    // Keeps the JIT from deciding the results are unused
+    private static double sink = 0;
+
+    private BenchmarkBPMCounter() {
+    }
+
+    public static void parseArguments(String[] args) {
+        if (args.length > 0) {
+            niter = Integer.parseInt(args[0]);
+            if (args.length > 1) {
+                doWarmup = Boolean.parseBoolean(args[1]);
+            }
+            if (args.length > 2) {
+                windows = new int[args.length - 2];
+                for (int i = 2; i < args.length; i++) {
+                    windows[i - 2] = Integer.parseInt(args[i]);
+                }
+            }
+        } else {
+            System.out.println("Default settings are used.");
+        }
+        System.out.println("niter = " + niter);
+        System.out.println("doWarmup = " + doWarmup);
+        System.out.println("windows[] = " + Arrays.toString(windows));
+        System.out.println("hops[] = " + Arrays.toString(hops));
+    }
+
+    private static void makeInput() {
+        Random random = new Random(0);
+        inputX = new float[INPUT];
+        inputY = new float[INPUT];
+        inputZ = new float[INPUT];
+        for (int i = 0; i < INPUT; i++) {
+            double s = i / 50.0;
+            float beat = (float) Math.sin(2 * Math.PI * 2 * s);
+            inputX[i] = 0.2f * beat + 0.1f * (float) random.nextGaussian();
+            inputY[i] = beat + 0.1f * (float) random.nextGaussian();
+            inputZ[i] = 0.1f * (float) random.nextGaussian();
+        }
+    }
+
+    private static void report(String name, int window, String extra, long nanos, long bytes, long ops) {
+        String allocation = bytes < 0 ? "n/a" : String.format("%.2f", (double) bytes / ops);
+        System.out.printf("%-8s window %5d %-9s %12.1f ns/op %10s B/op%n", name, window, extra, (double) nanos / ops, allocation);
+    }
+
+    /*
+        Steady state record(): fills the window first, then times niter hops' worth of samples
+     */
+    public static void benchmarkRecord() {
+        for (int window : windows) {
+            for (int hop : hops) {
+                if (window % hop != 0) {
+                    continue;
+                }
+                BPMCounter counter = new BPMCounter(window, hop);
+                long t = 0;
+                int idx = 0;
+                int warmup = doWarmup ? Math.max(window, niter * hop) : window;
+                for (int i = 0; i < warmup; i++) {
+                    t += 20000000L;
+                    sink += counter.recordNanos(inputX[idx], inputY[idx], inputZ[idx], t);
+                    idx = (idx + 1) & (INPUT - 1);
+                }
+                long ops = (long) niter * hop;
+                long bytesBefore = ReplayHarness.allocatedBytes();
+                long start = System.nanoTime();
+                for (long i = 0; i < ops; i++) {
+                    t += 20000000L;
+                    sink += counter.recordNanos(inputX[idx], inputY[idx], inputZ[idx], t);
+                    idx = (idx + 1) & (INPUT - 1);
+                }
+                long elapsed = System.nanoTime() - start;
+                long bytesAfter = ReplayHarness.allocatedBytes();
+                report("record", window, "hop " + hop, elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, ops);
+            }
+        }
+    }
+
+    /*
+        run_fft(axis) for one axis, window already full
+     */
+    public static void benchmarkRunFft() {
+        for (int window : windows) {
+            BPMCounter counter = new BPMCounter(window, window);
+            long t = 0;
+            for (int i = 0; i < window; i++) {
+                t += 20000000L;
+                counter.recordNanos(inputX[i & (INPUT - 1)], inputY[i & (INPUT - 1)], inputZ[i & (INPUT - 1)], t);
+            }
+            if (doWarmup) {
+                for (int i = 0; i < niter; i++) {
+                    sink += counter.run_fft(SampleStore.Y)[0];
+                }
+            }
+            long bytesBefore = ReplayHarness.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < niter; i++) {
+                sink += counter.run_fft(SampleStore.Y)[0];
+            }
+            long elapsed = System.nanoTime() - start;
+            long bytesAfter = ReplayHarness.allocatedBytes();
+            report("run_fft", window, "", elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, niter);
+        }
+    }
+
+    /*
+        pickPeak on its own, over the magnitudes the last run_fft left behind
+     */
+    public static void benchmarkPeakSearch() {
+        for (int window : windows) {
+            BPMCounter counter = new BPMCounter(window, window);
+            long t = 0;
+            for (int i = 0; i < window; i++) {
+                t += 20000000L;
+                counter.recordNanos(inputX[i & (INPUT - 1)], inputY[i & (INPUT - 1)], inputZ[i & (INPUT - 1)], t);
+            }
+            counter.run_fft(SampleStore.Y);
+            float[] magnitude = counter.axisMagnitude(SampleStore.Y);
+            float[] result = new float[2];
+            int reps = niter * 100;
+            if (doWarmup) {
+                for (int i = 0; i < reps; i++) {
+                    sink += counter.pickPeak(magnitude, null, result)[0];
+                }
+            }
+            long bytesBefore = ReplayHarness.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < reps; i++) {
+                sink += counter.pickPeak(magnitude, null, result)[0];
+            }
+            long elapsed = System.nanoTime() - start;
+            long bytesAfter = ReplayHarness.allocatedBytes();
+            report("peak", window, "", elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, reps);
+        }
+    }
+
+    /*
+        Peak and runner-up in the band of the same spectrum, all bins' magnitudes + PeakFinder
+         against SpectralPeaks. The band is whatever the counter worked out for 50 Hz samples.
+     */
+    public static void benchmarkBandPeak() {
+        for (int window : windows) {
+            BPMCounter counter = new BPMCounter(window, window);
+            long t = 0;
+            for (int i = 0; i < window; i++) {
+                t += 20000000L;
+                counter.recordNanos(inputX[i & (INPUT - 1)], inputY[i & (INPUT - 1)], inputZ[i & (INPUT - 1)], t);
+            }
+            int from = counter.axisBandStart();
+            int to = counter.axisBandEnd();
+            float[] spectrum = Arrays.copyOf(inputY, window);
+            new FloatFFT_1D(window).realForward(spectrum);
+            float[] magnitude = new float[window / 2];
+            PeakFinder peaks = new PeakFinder();
+            int[] indices = new int[2];
+            float[] powers = new float[2];
+            int reps = niter * 100;
+            long[] elapsed = new long[2];
+            long[] bytes = new long[2];
+            for (int c = 0; c < 2; c++) {
+                for (int pass = doWarmup ? 0 : 1; pass < 2; pass++) {
+                    long bytesBefore = ReplayHarness.allocatedBytes();
+                    long start = System.nanoTime();
+                    for (int r = 0; r < reps; r++) {
+                        if (c == 0) {
+                            for (int i = 0; i < window / 2; i++) {
+                                magnitude[i] = (float) Math.sqrt(spectrum[2 * i] * spectrum[2 * i] + spectrum[2 * i + 1] * spectrum[2 * i + 1]);
+                            }
+                            int best = peaks.find(magnitude, from, to, 1, 0, false);
+                            sink += magnitude[best] * peaks.confidence();
+                        } else {
+                            int found = SpectralPeaks.findPeaks(spectrum, from, to, 2, indices, powers);
+                            float best = (float) Math.sqrt(powers[0]);
+                            sink += found > 1 ? best - (float) Math.sqrt(powers[1]) : best;
+                        }
+                    }
+                    elapsed[c] = System.nanoTime() - start;
+                    long bytesAfter = ReplayHarness.allocatedBytes();
+                    bytes[c] = bytesBefore < 0 ? -1 : bytesAfter - bytesBefore;
+                }
+            }
+            report("bandpeak", window, "all bins", elapsed[0], bytes[0], reps);
+            report("bandpeak", window, "band", elapsed[1], bytes[1], reps);
+        }
+    }
+
+    /*
+        The storage design BPMCounter started out with, cut down to just the storage: one object
+         per sample, HISTORY windows of slots, a gather into new arrays every hop and a
+         clearHistory() when the slots run out.
+     */
+    static class LegacyStore {
+        private static final int HISTORY = 32;
+
+        static class DataPoint {
+            float x;
+            float y;
+            float z;
+            long timestamp;
+
+            DataPoint(float x, float y, float z, long timestamp) {
+                this.x = x;
+                this.y = y;
+                this.z = z;
+                this.timestamp = timestamp;
+            }
+        }
+
+        private final int recordsToKeep;
+        private final int updateFrequency;
+        private DataPoint[] data;
+        private int currPos;
+        private int dataStart = 1;
+
+        LegacyStore(int recordsToKeep, int updateFrequency) {
+            this.recordsToKeep = recordsToKeep;
+            this.updateFrequency = updateFrequency;
+            data = new DataPoint[recordsToKeep * HISTORY];
+            for (int i = 0; i < recordsToKeep; i++) {
+                data[i] = new DataPoint(0, 0, 0, 0);
+            }
+            currPos = recordsToKeep;
+        }
+
+        /*
+            Returns a checksum of the windows it gathered, so the work can't be optimized away
+         */
+        float record(float x, float y, float z, long timestamp) {
+            data[currPos] = new DataPoint(x, y, z, timestamp);
+            currPos += 1;
+            if (currPos % updateFrequency != 0) {
+                return 0;
+            }
+            if (currPos == data.length) {
+                clearHistory();
+            }
+            float sum = gather(0)[recordsToKeep - 1] + gather(1)[recordsToKeep - 1] + gather(2)[recordsToKeep - 1];
+            dataStart += 1;
+            return sum;
+        }
+
+        private float[] gather(int axis) {
+            float[] fft = new float[recordsToKeep];
+            for (int i = 0; i < recordsToKeep; i++) {
+                DataPoint p = data[dataStart * updateFrequency + i];
+                fft[i] = axis == 0 ? p.x : axis == 1 ? p.y : p.z;
+            }
+            return fft;
+        }
+
+        void clearHistory() {
+            DataPoint[] d2 = new DataPoint[recordsToKeep * HISTORY];
+            System.arraycopy(data, recordsToKeep * (HISTORY - 1), d2, 0, recordsToKeep);
+            data = d2;
+            dataStart = 0;
+            currPos = recordsToKeep;
+        }
+    }
+
+    /*
+        legacy vs store: just the storage side of record() (no FFT), per sample, for each hop size.
+         Both copy out the three axes every hop, so the difference is the layout.
+     */
+    public static void benchmarkStorage() {
+        for (int window : windows) {
+            for (int hop : hops) {
+                if (window % hop != 0) {
+                    continue;
+                }
+                // Enough samples to go through clearHistory() at least a couple of times
+                long ops = Math.max((long) niter * hop, 3L * window * LegacyStore.HISTORY);
+
+                LegacyStore legacy = new LegacyStore(window, hop);
+                long t = 0;
+                int idx = 0;
+                if (doWarmup) {
+                    for (long i = 0; i < ops; i++) {
+                        sink += legacy.record(inputX[idx], inputY[idx], inputZ[idx], ++t);
+                        idx = (idx + 1) & (INPUT - 1);
+                    }
+                }
+                long bytesBefore = ReplayHarness.allocatedBytes();
+                long start = System.nanoTime();
+                for (long i = 0; i < ops; i++) {
+                    sink += legacy.record(inputX[idx], inputY[idx], inputZ[idx], ++t);
+                    idx = (idx + 1) & (INPUT - 1);
+                }
+                long elapsed = System.nanoTime() - start;
+                long bytesAfter = ReplayHarness.allocatedBytes();
+                report("legacy", window, "hop " + hop, elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, ops);
+
+                SampleStore store = new SampleStore(window);
+                float[][] buffers = new float[3][window];
+                int sinceHop = 0;
+                if (doWarmup) {
+                    for (long i = 0; i < ops; i++) {
+                        store.add(inputX[idx], inputY[idx], inputZ[idx], ++t);
+                        idx = (idx + 1) & (INPUT - 1);
+                        if (++sinceHop == hop) {
+                            sinceHop = 0;
+                            store.copyWindow(SampleStore.X, buffers[0], window);
+                            store.copyWindow(SampleStore.Y, buffers[1], window);
+                            store.copyWindow(SampleStore.Z, buffers[2], window);
+                            sink += buffers[0][window - 1] + buffers[1][window - 1] + buffers[2][window - 1];
+                        }
+                    }
+                }
+                bytesBefore = ReplayHarness.allocatedBytes();
+                start = System.nanoTime();
+                for (long i = 0; i < ops; i++) {
+                    store.add(inputX[idx], inputY[idx], inputZ[idx], ++t);
+                    idx = (idx + 1) & (INPUT - 1);
+                    if (++sinceHop == hop) {
+                        sinceHop = 0;
+                        store.copyWindow(SampleStore.X, buffers[0], window);
+                        store.copyWindow(SampleStore.Y, buffers[1], window);
+                        store.copyWindow(SampleStore.Z, buffers[2], window);
+                        sink += buffers[0][window - 1] + buffers[1][window - 1] + buffers[2][window - 1];
+                    }
+                }
+                elapsed = System.nanoTime() - start;
+                bytesAfter = ReplayHarness.allocatedBytes();
+                report("store", window, "hop " + hop, elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, ops);
+            }
+        }
+    }
+
+    /*
+        One legacy clearHistory() on its own: allocating the new slot array and moving the last
+         window over
+     */
+    public static void benchmarkClearHistory() {
+        for (int window : windows) {
+            LegacyStore legacy = new LegacyStore(window, window);
+            int reps = Math.max(niter / 10, 1);
+            if (doWarmup) {
+                for (int i = 0; i < reps; i++) {
+                    legacy.clearHistory();
+                }
+            }
+            long bytesBefore = ReplayHarness.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < reps; i++) {
+                legacy.clearHistory();
+            }
+            long elapsed = System.nanoTime() - start;
+            long bytesAfter = ReplayHarness.allocatedBytes();
+            report("clear", window, "", elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, reps);
+        }
+    }
+
+    /*
+        Many streams through one MultiStreamBPMCounter, see the class comment. Every stream gets
+         its own stretch of the input so they don't all peak in the same bin.
+     */
+    public static void benchmarkStreams() {
+        int processors = ConcurrencyUtils.getNumberOfProcessors();
+        int savedThreads = ConcurrencyUtils.getNumberOfThreads();
+        int[] threadCounts = processors > 1 ? new int[]{1, processors} : new int[]{1};
+        for (int window : windows) {
+            // Where FloatFFT_1D would go multithreaded itself, see MultiStreamBPMCounter
+            if (window >= CommonUtils.getThreadsBeginN_1D_FFT_2Threads()) {
+                continue;
+            }
+            MultiStreamBPMCounter engine = new MultiStreamBPMCounter(STREAMS, window, STREAM_HOP);
+            long period = (long) (1e9 / STREAM_RATE);
+            long t = 0;
+            int idx = 0;
+            // A full window and one more hop, so every stream is due from the first round on
+            for (int i = 0; i < window + STREAM_HOP; i++) {
+                t += period;
+                pushAll(engine, idx, t);
+                idx = (idx + 1) & (INPUT - 1);
+            }
+            engine.process();
+            int rounds = Math.max(niter / 20, 5);
+            for (int threads : threadCounts) {
+                ConcurrencyUtils.setNumberOfThreads(threads);
+                int warmup = doWarmup ? rounds : 0;
+                long start = 0;
+                long bytesBefore = 0;
+                for (int r = 0; r < warmup + rounds; r++) {
+                    if (r == warmup) {
+                        bytesBefore = ReplayHarness.allocatedBytes();
+                        start = System.nanoTime();
+                    }
+                    for (int i = 0; i < STREAM_HOP; i++) {
+                        t += period;
+                        pushAll(engine, idx, t);
+                        idx = (idx + 1) & (INPUT - 1);
+                    }
+                    engine.process();
+                }
+                long elapsed = System.nanoTime() - start;
+                long bytesAfter = ReplayHarness.allocatedBytes();
+                for (int s = 0; s < STREAMS; s++) {
+                    sink += engine.getEstimate(s);
+                }
+                long ops = (long) rounds * STREAMS;
+                // Allocation only counts this thread, not the pool's
+                report("streams", window, threads + " thr", elapsed, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore, ops);
+                double hopsPerCoreSecond = ops / (elapsed / 1e9) / threads;
+                System.out.printf("%-8s window %5d %-9s %12.0f streams/core at %.0f Hz%n", "", window, "",
+                        hopsPerCoreSecond * STREAM_HOP / STREAM_RATE, STREAM_RATE);
+            }
+        }
+        ConcurrencyUtils.setNumberOfThreads(savedThreads);
+    }
+
+    public static void benchmarkFixedPoint() {
+        int hop = 32;
+        for (int window : windows) {
+            BPMCounter fullFft = new BPMCounter(window, hop);
+            BPMCounter fixedPoint = new BPMCounter(window, hop);
+            fixedPoint.setSpectrumMode(BPMCounter.SpectrumMode.FIXED_POINT);
+
+            // Agreement first, both counters fed the same samples in lockstep
+            long t = 0;
+            int idx = 0;
+            int hops = 0;
+            int agreed = 0;
+            double difference = 0;
+            for (int i = 0; i < window + niter * hop; i++) {
+                t += 20000000L;
+                float a = fullFft.recordNanos(inputX[idx], inputY[idx], inputZ[idx], t);
+                float b = fixedPoint.recordNanos(inputX[idx], inputY[idx], inputZ[idx], t);
+                idx = (idx + 1) & (INPUT - 1);
+                if (a != -1 && i >= window) {
+                    hops += 1;
+                    difference += Math.abs(a - b) * 60;
+                    if (Math.abs(a - b) * 60 <= 1) {
+                        agreed += 1;
+                    }
+                }
+            }
+
+            /*
+                The spectrum of one axis on its own, the part the mode changes: window copy,
+                 realForward and a sqrt per bin for FULL_FFT, FixedPointFFT over the bins the peak
+                 search reads for FIXED_POINT. Timing the two counters' record() in the same JVM
+                 mostly measured the JIT recompiling record() for whichever mode came second.
+             */
+            int bins = fixedPoint.axisSearchEnd() - 1;
+            float[] window0 = Arrays.copyOf(inputY, window);
+            float[] buffer = new float[window];
+            float[] magnitude = new float[window / 2];
+            FloatFFT_1D fft = new FloatFFT_1D(window);
+            FixedPointFFT fixed = new FixedPointFFT(window);
+            int reps = Math.max(niter, (1 << 22) / window);
+            long[] elapsed = new long[2];
+            long[] bytes = new long[2];
+            for (int c = 0; c < 2; c++) {
+                for (int pass = doWarmup ? 0 : 1; pass < 2; pass++) {
+                    long bytesBefore = ReplayHarness.allocatedBytes();
+                    long start = System.nanoTime();
+                    for (int r = 0; r < reps; r++) {
+                        if (c == 0) {
+                            System.arraycopy(window0, 0, buffer, 0, window);
+                            fft.realForward(buffer);
+                            for (int i = 0; i < window / 2; i++) {
+                                magnitude[i] = (float) Math.sqrt(buffer[2 * i] * buffer[2 * i] + buffer[2 * i + 1] * buffer[2 * i + 1]);
+                            }
+                        } else {
+                            fixed.magnitudes(window0, magnitude, 1, bins + 1);
+                        }
+                        sink += magnitude[bins];
+                    }
+                    elapsed[c] = System.nanoTime() - start;
+                    long bytesAfter = ReplayHarness.allocatedBytes();
+                    bytes[c] = bytesBefore < 0 ? -1 : bytesAfter - bytesBefore;
+                }
+            }
+            report("fixed", window, "FULL_FFT", elapsed[0], bytes[0], reps);
+            report("fixed", window, "FIXED_PT", elapsed[1], bytes[1], reps);
+            System.out.printf("%-8s window %5d %-9s %11.1f%% within 1 BPM, mean difference %.3f BPM%n", "", window, "",
+                    100.0 * agreed / hops, difference / hops);
+
+            /*
+                Per axis per hop, counting a radix-2 FFT for both (FloatFFT_1D's split radix does a
+                 bit less, but the same order): n/4 log2(n/2) butterflies of 4 multiplies and 6 adds,
+                 then the split back to n/2 real bins at 4 multiplies and 8 adds each. The float path
+                 splits and takes a sqrt for every bin, the fixed point one only for the bins up to
+                 axisSearchEnd(), plus 4 float operations per sample to scale in and 1 per bin to
+                 scale out. Shifts count as adds.
+             */
+            int butterflies = window / 4 * Integer.numberOfTrailingZeros(window / 2);
+            long floatOps = butterflies * 10L + window / 2 * (12L + 3);
+            long intOps = butterflies * 14L + bins * (12L + 6);
+            long scaleOps = window * 4L + bins;
+            System.out.printf("%-8s window %5d %-9s FULL_FFT %d float ops + %d sqrt, FIXED_PT %d int ops + %d float ops + 0 sqrt%n",
+                    "", window, "", floatOps, window / 2, intOps, scaleOps);
+        }
+    }
+
+    private static void pushAll(MultiStreamBPMCounter engine, int idx, long t) {
+        for (int s = 0; s < STREAMS; s++) {
+            int i = (idx + s * 61) & (INPUT - 1);
+            engine.push(s, inputX[i], inputY[i], inputZ[i], t);
+        }
+    }
+
+    public static void main(String[] args) {
+        parseArguments(args);
+        makeInput();
+        benchmarkRecord();
+        benchmarkRunFft();
+        benchmarkPeakSearch();
+        benchmarkBandPeak();
+        benchmarkStorage();
+        benchmarkClearHistory();
+        benchmarkStreams();
+        benchmarkFixedPoint();
+        // Printed so the JIT has to keep every result
+        System.out.println("checksum " + (float) sink);
+    }
+}
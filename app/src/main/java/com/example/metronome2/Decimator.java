@@ -0,0 +1,125 @@
+package com.example.metronome2;
+
+/*
+    Streaming decimator: lowers the sample rate by a power of two with a cascade of half-band
+     low-pass filters, each of which halves the rate.
+
+        80 Hz -> [half-band, /2] -> 40 Hz -> [half-band, /2] -> 20 Hz -> [half-band, /2] -> 10 Hz
+
+    Just throwing samples away (like keeping every 3rd one) folds everything above the new
+     Nyquist rate back down into the spectrum: footstep impacts or wrist tremor at 8 Hz land on
+     2 Hz (120 BPM) at 10 Hz. Filtering first removes that content, and the BPM band only goes up
+     to 3.33 Hz, so a window at 10 Hz covers the same time span as one at 80 Hz with an eighth of
+     the points.
+
+    Each stage is a 15 tap half-band FIR (Kaiser window, beta = 3). Every other coefficient of a
+     half-band filter is 0 and the rest are symmetric, so one output is 4 multiplies plus the
+     center tap. Relative to each stage's input rate it's flat (+0.03 dB) up to 1/6 and at least
+     40 dB down from 1/3 to Nyquist. Whatever does get folded lands above 1/3 of the output rate,
+     so at 10 Hz out everything up to 3.33 Hz (MAX_BPM) is clean.
+
+    Same usage pattern as Resampler, nothing is allocated per sample:
+
+        if (decimator.push(x, y, z, timestamp)) {
+            use(decimator.x(), decimator.y(), decimator.z(), decimator.time());
+        }
+
+    The filters delay the signal by 7 samples per stage (at that stage's rate). That doesn't
+     matter for the tempo, and output timestamps are the ones of the input that completed them.
+ */
+class Decimator {
+    // Non-zero taps at offsets 1, 3, 5, 7 from the center (which is 0.5)
+    private static final float[] COEFFICIENTS = {0.31190794f, -0.08459251f, 0.03204395f, -0.00935937f};
+    private static final int CENTER = 7;
+    // Each stage keeps its last 16 inputs (15 taps, rounded up to a power of two for masking)
+    private static final int MASK = 15;
+
+    private final int factor;
+    private final int stages;
+    private final float[][] historyX;
+    private final float[][] historyY;
+    private final float[][] historyZ;
+    // Next slot to write in each stage's history
+    private final int[] position;
+    // Whether each stage skipped its last input, in which case the next one produces an output
+    private final boolean[] skipped;
+
+    private long outTime;
+    private float outX;
+    private float outY;
+    private float outZ;
+
+    Decimator(int factor) {
+        if (factor < 1 || Integer.bitCount(factor) != 1) {
+            throw new IllegalArgumentException("Decimation factor must be a power of two, got " + factor);
+        }
+        this.factor = factor;
+        stages = Integer.numberOfTrailingZeros(factor);
+        historyX = new float[stages][MASK + 1];
+        historyY = new float[stages][MASK + 1];
+        historyZ = new float[stages][MASK + 1];
+        position = new int[stages];
+        skipped = new boolean[stages];
+    }
+
+    int factor() {
+        return factor;
+    }
+
+    /*
+        Feeds one sample through the cascade. Returns true (once every factor samples) if that
+         completed an output sample, which can then be read with x(), y(), z() and time().
+     */
+    boolean push(float x, float y, float z, long timestamp) {
+        for (int s = 0; s < stages; s++) {
+            int p = position[s];
+            historyX[s][p] = x;
+            historyY[s][p] = y;
+            historyZ[s][p] = z;
+            position[s] = (p + 1) & MASK;
+
+            skipped[s] = !skipped[s];
+            if (skipped[s]) {
+                // Only every other input of each stage makes it to the next one
+                return false;
+            }
+            x = filter(historyX[s], p);
+            y = filter(historyY[s], p);
+            z = filter(historyZ[s], p);
+        }
+        outX = x;
+        outY = y;
+        outZ = z;
+        outTime = timestamp;
+        return true;
+    }
+
+    /*
+        One output of the half-band filter, for the history whose newest sample is at index newest
+     */
+    private static float filter(float[] history, int newest) {
+        int center = newest - CENTER;
+        float acc = 0.5f * history[center & MASK];
+        for (int k = 0; k < COEFFICIENTS.length; k++) {
+            int offset = 2 * k + 1;
+            acc += COEFFICIENTS[k] * (history[(center - offset) & MASK] + history[(center + offset) & MASK]);
+        }
+        return acc;
+    }
+
+    long time() {
+        return outTime;
+    }
+
+    float x() {
+        return outX;
+    }
+
+    float y() {
+        return outY;
+    }
+
+    float z() {
+        return outZ;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.metronome2;
+
+/*
+    Where BPMCounter's debug output goes. The default is NONE, which drops everything.
+
+    Callers are expected to check isEnabled() before building a message, so with NONE (or any
+     sink that has a level turned off) no strings get concatenated at all:
+
+        if (diagnostics.isEnabled(DiagnosticsSink.VERBOSE)) {
+            diagnostics.log(DiagnosticsSink.VERBOSE, "Highest frequency: " + freq);
+        }
+ */
+public interface DiagnosticsSink {
+    // Per bin / per array dumps, e.g. the whole frequency axis
+    int VERBOSE = 0;
+    // A few lines per hop
+    int DEBUG = 1;
+    // Rare events
+    int INFO = 2;
+
+    DiagnosticsSink NONE = new DiagnosticsSink() {
+        @Override
+        public boolean isEnabled(int level) {
+            return false;
+        }
+
+        @Override
+        public void log(int level, String message) {
+        }
+    };
+
+    boolean isEnabled(int level);
+
+    void log(int level, String message);
+}
@@ -0,0 +1,175 @@
+package com.example.metronome2;
+
+/*
+    Magnitude spectrum of a real window in integer arithmetic only, for the FIXED_POINT spectrum
+     mode. On the small cores a watch runs low power mode on, integer multiplies and adds
+     usually cost less energy than float ones (and a sqrt per bin far more than either), and for
+     finding a peak the precision of a float FFT is wasted anyway.
+
+    Per window:
+        - the window (minus its mean) is block scaled into Q15: multiplied by whatever puts its
+            biggest sample at 2^14, so the whole range is used but there's a bit of headroom
+        - the n real samples are packed into an n/2 point complex signal (even samples real,
+            odd samples imaginary), the same trick FloatFFT_1D.realForward uses
+        - that goes through an in-place radix-2 decimation in time FFT on ints, with Q15
+            twiddles. Every stage halves its outputs, like the CMSIS q15 FFTs, so nothing can
+            overflow: a stage's outputs are never bigger than its inputs, the inputs are at most
+            2^14 (times sqrt 2 for a complex value), and a twiddle times that fits in an int.
+        - the n/2 complex bins get split back into the n point real spectrum, but only for the
+            bins the caller asks for
+        - magnitudes use alpha max plus beta min: alpha * max(|re|, |im|) + beta * min(|re|, |im|)
+            instead of a sqrt, at most 4% off (with alpha 0.960, beta 0.398)
+
+    The only float operations left are finding the scale on the way in and scaling the
+     magnitudes back on the way out (so they come out in the same units a float FFT would give,
+     and axes can still be compared to each other). The halving every stage costs about half a
+     bit per stage in precision, which only matters far below any peak worth finding.
+
+    On a desktop JVM with a fast FPU this is slower than FloatFFT_1D, not faster (see the fixed
+     lines of BenchmarkBPMCounter): the point is the kind of arithmetic, not the speed.
+
+    n has to be a power of two, at least 4.
+ */
+class FixedPointFFT {
+    private static final int Q15 = 1 << 15;
+    // Biggest input sample after block scaling
+    private static final int HEADROOM = 1 << 14;
+    // Alpha max plus beta min coefficients in Q15, minimizing the largest error
+    private static final int ALPHA = 31470;
+    private static final int BETA = 13036;
+
+    private final int n;
+    private final int half;
+    // cos and -sin of 2 pi k / n in Q15, for k < n/2
+    private final int[] cos;
+    private final int[] sin;
+    private final int[] reversed;
+    private final int[] re;
+    private final int[] im;
+
+    FixedPointFFT(int n) {
+        if (n < 4 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("Fixed point FFT size has to be a power of two, got " + n);
+        }
+        this.n = n;
+        half = n / 2;
+        int stages = Integer.numberOfTrailingZeros(half);
+        cos = new int[half];
+        sin = new int[half];
+        for (int k = 0; k < half; k++) {
+            double angle = 2 * Math.PI * k / n;
+            cos[k] = (int) Math.round(Math.cos(angle) * (Q15 - 1));
+            sin[k] = (int) Math.round(-Math.sin(angle) * (Q15 - 1));
+        }
+        reversed = new int[half];
+        for (int k = 0; k < half; k++) {
+            reversed[k] = Integer.reverse(k) >>> (32 - stages);
+        }
+        re = new int[half];
+        im = new int[half];
+    }
+
+    int size() {
+        return n;
+    }
+
+    /*
+        Transforms window (n samples) and fills magnitudes[from, to) with |X[k]|, in the same
+         units as FloatFFT_1D.realForward's output would have. Needs 1 <= from and to <= n/2;
+         bin 0 is the mean, which is taken out first anyway.
+     */
+    void magnitudes(float[] window, float[] magnitudes, int from, int to) {
+        float mean = 0;
+        for (int i = 0; i < n; i++) {
+            mean += window[i];
+        }
+        mean /= n;
+        float peak = 0;
+        for (int i = 0; i < n; i++) {
+            peak = Math.max(peak, Math.abs(window[i] - mean));
+        }
+        if (peak == 0) {
+            for (int k = from; k < to; k++) {
+                magnitudes[k] = 0;
+            }
+            return;
+        }
+        float scale = HEADROOM / peak;
+
+        // Even samples to the real part, odd ones to the imaginary part, in bit reversed order
+        for (int k = 0; k < half; k++) {
+            int j = reversed[k];
+            re[j] = (int) ((window[2 * k] - mean) * scale);
+            im[j] = (int) ((window[2 * k + 1] - mean) * scale);
+        }
+
+        transform();
+
+        /*
+            Split the n/2 point transform Z of the packed signal into the real transform X:
+                X[k] = (Z[k] + conj Z[h - k]) / 2 + w^k (Z[k] - conj Z[h - k]) / 2i,  w = e^(-2 pi i / n)
+             with h = n/2 and Z[h] = Z[0]
+         */
+        // Undoes the block scale and the 1 / h the stages left behind
+        float unscale = half / scale;
+        for (int k = from; k < to; k++) {
+            int m = k == 0 ? 0 : half - k;
+            int evenRe = (re[k] + re[m]) >> 1;
+            int evenIm = (im[k] - im[m]) >> 1;
+            int oddRe = (im[k] + im[m]) >> 1;
+            int oddIm = (re[m] - re[k]) >> 1;
+            int c = cos[k];
+            int s = sin[k];
+            int xr = evenRe + ((c * oddRe - s * oddIm) >> 15);
+            int xi = evenIm + ((c * oddIm + s * oddRe) >> 15);
+            magnitudes[k] = magnitude(xr, xi) * unscale;
+        }
+    }
+
+    /*
+        In place radix-2 decimation in time over re/im (already in bit reversed order), halving
+         after every stage
+     */
+    private void transform() {
+        int[] re = this.re;
+        int[] im = this.im;
+        // First stage on its own, its only twiddle is 1
+        for (int a = 0; a < half; a += 2) {
+            int b = a + 1;
+            int tr = re[b];
+            int ti = im[b];
+            re[b] = (re[a] - tr) >> 1;
+            im[b] = (im[a] - ti) >> 1;
+            re[a] = (re[a] + tr) >> 1;
+            im[a] = (im[a] + ti) >> 1;
+        }
+        for (int size = 4, step = half / 2; size <= half; size <<= 1, step >>= 1) {
+            int span = size >> 1;
+            for (int j = 0; j < span; j++) {
+                // Twiddle e^(-2 pi i j / size), which is index j * n / size = j * step in the n point table
+                int c = cos[j * step];
+                int s = sin[j * step];
+                for (int a = j; a < half; a += size) {
+                    int b = a + span;
+                    int tr = (c * re[b] - s * im[b]) >> 15;
+                    int ti = (c * im[b] + s * re[b]) >> 15;
+                    re[b] = (re[a] - tr) >> 1;
+                    im[b] = (im[a] - ti) >> 1;
+                    re[a] = (re[a] + tr) >> 1;
+                    im[a] = (im[a] + ti) >> 1;
+                }
+            }
+        }
+    }
+
+    /*
+        |re + i im| to within 4%, no sqrt, in the same units as re and im
+     */
+    static int magnitude(int re, int im) {
+        int a = Math.abs(re);
+        int b = Math.abs(im);
+        int max = Math.max(a, b);
+        int min = Math.min(a, b);
+        return (int) (((long) ALPHA * max + (long) BETA * min) >> 15);
+    }
+}
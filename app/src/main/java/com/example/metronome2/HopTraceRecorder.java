@@ -0,0 +1,120 @@
+package com.example.metronome2;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+    Keeps a compact binary record of the last few thousand hops for offline inspection: where the
+     peak was on each axis, how strong it was, which axis the fusion went with and what came out.
+
+    Like SampleStore, it's a circular buffer of parallel primitive arrays, so recording a hop is a
+     handful of array writes and never allocates. Once it's full the oldest hops get overwritten.
+
+    writeTo() dumps the hops oldest first in this format (all big endian, DataOutputStream):
+
+        int   MAGIC ("BPMT")
+        int   VERSION
+        int   number of hops
+        per hop:
+            long  timestamp of the newest sample in the window (ms)
+            short bandStart, bandEnd         BPM band as bin indices [start, end)
+            short peakIndex x, y, z          -1 if that axis wasn't analyzed on its own this hop
+            float weight x, y, z
+            byte  decision                   SampleStore.X/Y/Z, or BPMCounter.AXIS_FUSED
+            float frequency, weight          the estimate record() returned
+
+    The recorder isn't thread safe. When it's attached to a counter running inside
+     AsyncBPMCounter, only dump it after stop().
+ */
+public class HopTraceRecorder {
+    public static final int MAGIC = 0x42504d54;
+    public static final int VERSION = 1;
+
+    private final int capacity;
+    private final long[] timestamp;
+    private final short[] bandStart;
+    private final short[] bandEnd;
+    private final short[] peakIndex;
+    private final float[] axisWeight;
+    private final byte[] decision;
+    private final float[] frequency;
+    private final float[] weight;
+    private int head = 0;
+    private int count = 0;
+
+    public HopTraceRecorder(int capacity) {
+        this.capacity = capacity;
+        timestamp = new long[capacity];
+        bandStart = new short[capacity];
+        bandEnd = new short[capacity];
+        peakIndex = new short[3 * capacity];
+        axisWeight = new float[3 * capacity];
+        decision = new byte[capacity];
+        frequency = new float[capacity];
+        weight = new float[capacity];
+    }
+
+    /*
+        Stores one hop. peakIndices/axisWeights are indexed by SampleStore.X/Y/Z
+     */
+    void record(long time, int start, int end, int[] peakIndices, float[] axisWeights,
+                int axis, float estimateFrequency, float estimateWeight) {
+        timestamp[head] = time;
+        bandStart[head] = (short) start;
+        bandEnd[head] = (short) end;
+        for (int a = 0; a < 3; a++) {
+            peakIndex[3 * head + a] = (short) peakIndices[a];
+            axisWeight[3 * head + a] = axisWeights[a];
+        }
+        decision[head] = (byte) axis;
+        frequency[head] = estimateFrequency;
+        weight[head] = estimateWeight;
+        head += 1;
+        if (head == capacity) {
+            head = 0;
+        }
+        if (count < capacity) {
+            count += 1;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        int idx = head - count;
+        if (idx < 0) {
+            idx += capacity;
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeLong(timestamp[idx]);
+            out.writeShort(bandStart[idx]);
+            out.writeShort(bandEnd[idx]);
+            for (int a = 0; a < 3; a++) {
+                out.writeShort(peakIndex[3 * idx + a]);
+            }
+            for (int a = 0; a < 3; a++) {
+                out.writeFloat(axisWeight[3 * idx + a]);
+            }
+            out.writeByte(decision[idx]);
+            out.writeFloat(frequency[idx]);
+            out.writeFloat(weight[idx]);
+            idx += 1;
+            if (idx == capacity) {
+                idx = 0;
+            }
+        }
+        out.flush();
+    }
+}
@@ -1,14 +1,26 @@
 package com.example.metronome2
 
 import android.app.Activity
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
 import android.graphics.Color
 import android.hardware.Sensor
 import android.hardware.SensorEvent
 import android.hardware.SensorEventListener
 import android.hardware.SensorManager
+import android.os.BatteryManager
+import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.PowerManager
+import android.os.SystemClock
 import android.widget.TextView
 import com.example.metronome2.databinding.ActivityMainBinding
+import java.io.File
+import java.io.IOException
 import java.time.Instant
 import kotlin.math.roundToInt
 
@@ -19,9 +31,54 @@ class MainActivity : Activity(), SensorEventListener {
     private lateinit var bpmlabel: TextView
     private lateinit var accLists: MutableList<MutableList<Float>>
     private var sensorType = Sensor.TYPE_LINEAR_ACCELERATION
-    private lateinit var bpmCounter : BPMCounter;
-    private var countEvery = 3;
-    private var c = 0;
+    private lateinit var bpmCounter : AsyncBPMCounter;
+    private val resampleRate = 80f
+    private val decimation = 4
+
+    // Window between 6.4 s and 51.2 s at 20 Hz, an estimate about every 2 seconds, 2% of a core.
+    // The tracker fills in between estimates, so they don't need to come any faster than that
+    private val autoTuner = AutoTuner(128, 1024, 2.0f, 0.02f)
+    // Estimates the counter isn't at least this sure of (torn between two unrelated tempos) are ignored
+    private val minConfidence = 0.1f
+    private val tempoTracker = TempoTracker(minConfidence)
+    private var shownBpm = -1
+    private val handler = Handler(Looper.getMainLooper())
+
+    // Redraws the tempo the tracker predicts once per beat
+    private val beatTick = object : Runnable {
+        override fun run() {
+            val bps = tempoTracker.tempoAt(SystemClock.elapsedRealtimeNanos())
+            var delay = 1000L
+            if (bps > 0) {
+                showBpm(bps)
+                delay = (1000 / bps).toLong().coerceIn(250L, 1500L)
+            }
+            handler.postDelayed(this, delay)
+        }
+    }
+    // Flashes the tempo on every beat the beat tracker reports, pulseOff puts it back
+    private val pulseOn = Runnable {
+        bpmlabel.setTextColor(Color.RED)
+        handler.postDelayed(pulseOff, 100)
+    }
+    private val pulseOff = Runnable { bpmlabel.setTextColor(Color.WHITE) }
+    private var sessionRecorder: SessionRecorder? = null
+    private var batteryScale = 1f
+    private var thermalScale = 1f
+    // PowerManager.OnThermalStatusChangedListener, which only exists on API 29+
+    private var thermalListener: Any? = null
+
+    private val batteryReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            val level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1)
+            val scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1)
+            val plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0
+            val low = !plugged && level >= 0 && scale > 0 && level * 100 / scale <= 20
+            // Half the CPU budget when the battery is low
+            batteryScale = if (low) 0.5f else 1f
+            updateBudget()
+        }
+    }
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -33,8 +90,69 @@ class MainActivity : Activity(), SensorEventListener {
         bpmlabel.setText("Loading...")
 
 
+        // Spectral work happens on the counter's own thread, results come back through the listener.
+        // The sensor's actual rate wanders, so samples get resampled to a fixed rate by their timestamps,
+        // then filtered down to 20 Hz: 512 samples is still a 25.6 s window, with an estimate every 0.8 s.
+        // That's only the starting point, the auto-tuner moves it around to fit the CPU budget.
+        // 20 Hz rather than 10 leaves room for the 2nd harmonic of the whole BPM band, which the
+        // harmonic sum needs to tell a tempo from its double or half. On ReplayHarness' synthetic
+        // traces at this setting it's within 2 BPM on every hop from 40 to 200 BPM, where
+        // STRONGEST_BIN reads 50, 60, 90 and 100 BPM an octave or more off
+        val counter = BPMCounter(512, 16)
+        counter.resampleRate = resampleRate
+        counter.decimation = decimation
+        counter.autoTuner = autoTuner
+        counter.peakSearch = BPMCounter.PeakSearch.HARMONIC_SUM
+        // Stop running FFTs after ~3 s of a still wrist (under 0.1 m/s^2), start again above 0.2 m/s^2.
+        // The last tempo stays up in the meantime
+        counter.setIdleGate(0.1f, 0.2f, 4)
+        // Follows where the beats fall between estimates, called on the worker thread
+        counter.beatTracker = BeatTracker(minConfidence) { handler.post(pulseOn) }
+        // Everything the counter sees goes to a log for ReplayHarness, about 4 MB an hour at 100 Hz.
+        // Started over once it's past 32 MB, or if it's not a log this version can append to
+        val log = File(filesDir, "session.bpms")
+        if (log.length() > 32L * 1024 * 1024) {
+            log.delete()
+        }
+        sessionRecorder = try {
+            SessionRecorder(log)
+        } catch (e: IOException) {
+            log.delete()
+            try { SessionRecorder(log) } catch (e: IOException) { null }
+        }
+        counter.sessionRecorder = sessionRecorder
+        bpmCounter = AsyncBPMCounter(counter) { result, confidence ->
+            // Straight into the tracker on the worker thread, beatTick picks it up from there
+            tempoTracker.update(result, confidence, SystemClock.elapsedRealtimeNanos())
+        }
+        bpmCounter.start()
+        handler.post(beatTick)
         setupSensorStuff()
-        bpmCounter = BPMCounter(1024, 32);
+        setupPowerStuff()
+    }
+
+    private fun setupPowerStuff() {
+        // Sticky broadcast, so this also delivers the current state right away
+        registerReceiver(batteryReceiver, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            val powerManager = getSystemService(POWER_SERVICE) as PowerManager
+            val listener = PowerManager.OnThermalStatusChangedListener { status ->
+                // Back off harder the hotter it gets
+                thermalScale = when {
+                    status >= PowerManager.THERMAL_STATUS_SEVERE -> 0.25f
+                    status >= PowerManager.THERMAL_STATUS_MODERATE -> 0.5f
+                    else -> 1f
+                }
+                updateBudget()
+            }
+            powerManager.addThermalStatusListener(listener)
+            thermalListener = listener
+        }
+    }
+
+    private fun updateBudget() {
+        autoTuner.budgetScale = batteryScale * thermalScale
     }
 
     private fun setupSensorStuff() {
@@ -52,18 +170,21 @@ class MainActivity : Activity(), SensorEventListener {
 
     override fun onSensorChanged(event: SensorEvent?) {
         if (event?.sensor?.type == sensorType) {
-            c += 1
-            if (c % countEvery == 0) {
-                val result = bpmCounter.record(event.values[0], event.values[1], event.values[2])
-                if (result != -1.0f) {
-                    // Round to the nearest 5
-                    var result_int = ((result * 12).roundToInt() * 5)
-                    bpmlabel.setText("" + result_int)
-                }
-            }
+            // Every sample goes in, the counter's decimator does the thinning out (with filtering)
+            bpmCounter.offerNanos(event.values[0], event.values[1], event.values[2], event.timestamp)
         }
     }
 
+    private fun showBpm(result: Float) {
+        // Round to the nearest 5
+        var result_int = ((result * 12).roundToInt() * 5)
+        if (result_int == shownBpm) {
+            return
+        }
+        shownBpm = result_int
+        bpmlabel.setText("" + result_int)
+    }
+
     private fun get_color(bpm: Int) {
 
     }
@@ -73,7 +194,22 @@ class MainActivity : Activity(), SensorEventListener {
     }
 
     override fun onDestroy() {
+        handler.removeCallbacks(beatTick)
+        handler.removeCallbacks(pulseOn)
+        handler.removeCallbacks(pulseOff)
         sensorManager.unregisterListener(this)
+        unregisterReceiver(batteryReceiver)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalListener != null) {
+            val powerManager = getSystemService(POWER_SERVICE) as PowerManager
+            powerManager.removeThermalStatusListener(thermalListener as PowerManager.OnThermalStatusChangedListener)
+        }
+        bpmCounter.stop()
+        // Only once the worker is done with it
+        try {
+            sessionRecorder?.close()
+        } catch (e: IOException) {
+            // Whatever didn't make it is lost either way
+        }
         super.onDestroy()
     }
 }
\ No newline at end of file
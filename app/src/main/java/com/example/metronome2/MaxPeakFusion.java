@@ -0,0 +1,31 @@
+package com.example.metronome2;
+
+/*
+    The original decision: run all three axes and go with whichever one has the highest peak.
+     Three FFTs per hop.
+ */
+public class MaxPeakFusion implements AxisFusion {
+    @Override
+    public void estimate(BPMCounter counter, float[] result) {
+        counter.analyzeAllAxes();
+        float[] resX = counter.axisResult(SampleStore.X);
+        float[] resY = counter.axisResult(SampleStore.Y);
+        float[] resZ = counter.axisResult(SampleStore.Z);
+        int axis;
+        if (resX[1] > resY[1] && resX[1] > resZ[1]) {
+            axis = SampleStore.X;
+        } else if (resY[1] > resZ[1]){
+            axis = SampleStore.Y;
+        } else {
+            axis = SampleStore.Z;
+        }
+        DiagnosticsSink diagnostics = counter.diagnostics();
+        if (diagnostics.isEnabled(DiagnosticsSink.DEBUG)) {
+            diagnostics.log(DiagnosticsSink.DEBUG, "Going with " + "XYZ".charAt(axis) + " (" + resX[1] + ", " + resY[1] + ", " + resZ[1] + ")");
+        }
+        counter.decideAxis(axis);
+        float[] best = counter.axisResult(axis);
+        result[0] = best[0];
+        result[1] = best[1];
+    }
+}
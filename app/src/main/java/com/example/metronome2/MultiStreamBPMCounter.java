@@ -0,0 +1,381 @@
+package com.example.metronome2;
+
+import org.jtransforms.fft.FloatFFT_1D;
+import org.jtransforms.utils.CommonUtils;
+import org.visnow.jlargearrays.ConcurrencyUtils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/*
+    BPM estimates for many independent streams at once (e.g. a server handling a few thousand
+     watches), without a few thousand BPMCounters.
+
+    A BPMCounter per stream would mean a plan, work arrays and a couple of dozen small objects
+     per stream, almost all of it only needed for the few microseconds a hop takes. Here the
+     per stream state is just what has to outlive a hop, in flat primitive arrays indexed by
+     stream number:
+
+        x, y, z   [stream * recordsToKeep + i]   each stream's window, a circular buffer like
+                                                  SampleStore (head[stream] is the oldest sample)
+        hopTimes  [stream * (hops per window + 1) + i]   timestamp of the last sample of each of
+                                                  the stream's recent hops, for its sample rate
+        head, sinceHop, hopSlot, hopCount, estimate, confidence, estimateTime   one entry per stream
+
+    which comes to 12 * recordsToKeep bytes plus a few hundred more per stream (about 6.3 KB at
+     512). Everything else is shared:
+        - one FloatFFT_1D plan for every stream and thread. A plan is only read after it's been
+            built, so realForward can run on it from any number of threads at once, as long as
+            it doesn't go multithreaded on its own. It does from
+            CommonUtils.getThreadsBeginN_1D_FFT_2Threads() points up (8192 unless someone set
+            it), by submitting its own tasks to the same ConcurrencyUtils pool process() runs
+            in, and tasks waiting on tasks stuck behind them in the queue can deadlock the pool.
+            So recordsToKeep has to stay below that, and if the threshold gets lowered under an
+            existing counter, process() does all its hops on the calling thread instead.
+        - one set of work arrays and a PeakFinder per thread, in a ThreadLocal
+        - the worker threads, which are JTransforms' ConcurrencyUtils pool
+            (ConcurrencyUtils.setNumberOfThreads sets how many of them process() uses)
+
+    Usage is in batches, from one thread (or with your own locking around it): push() whatever
+     samples have come in for any streams, then process() runs a hop for every stream that
+     finished one since the last process(), split across the pool. A stream that finished more
+     than one only gets analyzed once, on its newest window. Then read the results with
+     getEstimate() and friends.
+
+    Each hop is what a BPMCounter does by default with SummedPowerFusion: all three axes through
+     the FFT, their powers summed over the BPM band, the peak picked with the PeakSearch mode
+     (HARMONIC_SUM unless told otherwise) and refined with PARABOLIC interpolation. There's no
+     Resampler or Decimator per stream, so samples should come in at a steady rate that's
+     already low enough for the window to cover enough time, e.g. what the watch's own decimator
+     puts out. The rate is measured from the timestamps every hop. A stream gets its first
+     estimate once its window is full.
+ */
+public class MultiStreamBPMCounter {
+    // Below this many due streams per thread, handing them out costs more than it saves
+    private static final int MIN_STREAMS_PER_TASK = 16;
+
+    private final int streams;
+    private final int recordsToKeep;
+    private final int updateFrequency;
+    // Hop timestamps kept per stream: enough to reach back to just before the window
+    private final int hopSlots;
+    private final FloatFFT_1D plan;
+    private BPMCounter.PeakSearch peakSearch = BPMCounter.PeakSearch.HARMONIC_SUM;
+
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private final long[] hopTimes;
+    private final int[] head;
+    private final int[] sinceHop;
+    // Where the next hop timestamp goes, and how many of the slots are filled in
+    private final int[] hopSlot;
+    private final int[] hopCount;
+    private final float[] estimate;
+    private final float[] confidence;
+    private final long[] estimateTime;
+
+    // Streams with a hop waiting for process(), each listed once
+    private final int[] due;
+    private final boolean[] isDue;
+    private int dueCount = 0;
+
+    /*
+        Work arrays for one hop, one set per thread
+     */
+    private static class Scratch {
+        final float[] bufferX;
+        final float[] bufferY;
+        final float[] bufferZ;
+        final float[] fused;
+        final PeakFinder peaks = new PeakFinder();
+
+        Scratch(int recordsToKeep) {
+            bufferX = new float[recordsToKeep];
+            bufferY = new float[recordsToKeep];
+            bufferZ = new float[recordsToKeep];
+            fused = new float[recordsToKeep / 2];
+        }
+    }
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(recordsToKeep);
+        }
+    };
+
+    public MultiStreamBPMCounter(int streams, int recordsToKeep, int updateFrequency) {
+        if (streams < 1 || recordsToKeep < 4 || updateFrequency < 1 || recordsToKeep % updateFrequency != 0) {
+            throw new IllegalArgumentException("Need at least one stream and an updateFrequency (" + updateFrequency
+                    + ") that divides into recordsToKeep (" + recordsToKeep + ") evenly");
+        }
+        if (recordsToKeep >= CommonUtils.getThreadsBeginN_1D_FFT_2Threads()) {
+            throw new IllegalArgumentException("recordsToKeep (" + recordsToKeep + ") has to be below "
+                    + CommonUtils.getThreadsBeginN_1D_FFT_2Threads() + ", where FloatFFT_1D starts using the thread pool itself");
+        }
+        if ((long) streams * recordsToKeep > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(streams + " streams of " + recordsToKeep + " samples don't fit in an array");
+        }
+        this.streams = streams;
+        this.recordsToKeep = recordsToKeep;
+        this.updateFrequency = updateFrequency;
+        hopSlots = recordsToKeep / updateFrequency + 1;
+        plan = new FloatFFT_1D(recordsToKeep);
+
+        x = new float[streams * recordsToKeep];
+        y = new float[streams * recordsToKeep];
+        z = new float[streams * recordsToKeep];
+        hopTimes = new long[streams * hopSlots];
+        head = new int[streams];
+        sinceHop = new int[streams];
+        hopSlot = new int[streams];
+        hopCount = new int[streams];
+        estimate = new float[streams];
+        confidence = new float[streams];
+        estimateTime = new long[streams];
+        due = new int[streams];
+        isDue = new boolean[streams];
+        for (int s = 0; s < streams; s++) {
+            estimate[s] = -1;
+        }
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    public int getRecordsToKeep() {
+        return recordsToKeep;
+    }
+
+    public int getUpdateFrequency() {
+        return updateFrequency;
+    }
+
+    public BPMCounter.PeakSearch getPeakSearch() {
+        return peakSearch;
+    }
+
+    /*
+        Same as BPMCounter.setPeakSearch, for every stream. Not while process() is running.
+     */
+    public void setPeakSearch(BPMCounter.PeakSearch peakSearch) {
+        this.peakSearch = peakSearch;
+    }
+
+    /*
+        Adds one sample (timestamp in nanoseconds, any clock as long as it's the same one for the
+         whole stream) to a stream's window
+     */
+    public void push(int stream, float x, float y, float z, long timestampNanos) {
+        int h = head[stream];
+        int i = stream * recordsToKeep + h;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.z[i] = z;
+        head[stream] = h + 1 == recordsToKeep ? 0 : h + 1;
+        if (sinceHop[stream] + 1 < updateFrequency) {
+            sinceHop[stream] += 1;
+            return;
+        }
+        sinceHop[stream] = 0;
+        int slot = hopSlot[stream];
+        hopTimes[stream * hopSlots + slot] = timestampNanos;
+        hopSlot[stream] = slot + 1 == hopSlots ? 0 : slot + 1;
+        if (hopCount[stream] < hopSlots) {
+            hopCount[stream] += 1;
+        }
+        // Only once the window is full and there's a timestamp from just before it
+        if (hopCount[stream] == hopSlots && !isDue[stream]) {
+            isDue[stream] = true;
+            due[dueCount] = stream;
+            dueCount += 1;
+        }
+    }
+
+    /*
+        Forgets everything about a stream, e.g. when a different watch takes over its slot
+     */
+    public void reset(int stream) {
+        int from = stream * recordsToKeep;
+        for (int i = from; i < from + recordsToKeep; i++) {
+            x[i] = 0;
+            y[i] = 0;
+            z[i] = 0;
+        }
+        head[stream] = 0;
+        sinceHop[stream] = 0;
+        hopSlot[stream] = 0;
+        hopCount[stream] = 0;
+        estimate[stream] = -1;
+        confidence[stream] = 0;
+        estimateTime[stream] = 0;
+        if (isDue[stream]) {
+            isDue[stream] = false;
+            int d = 0;
+            while (due[d] != stream) {
+                d += 1;
+            }
+            due[d] = due[dueCount - 1];
+            dueCount -= 1;
+        }
+    }
+
+    /*
+        How many streams have a hop waiting
+     */
+    public int pending() {
+        return dueCount;
+    }
+
+    /*
+        Runs the waiting hops, spread over ConcurrencyUtils.getNumberOfThreads() tasks when there
+         are enough of them (and the plan wouldn't use the pool itself, see the class comment), and
+         returns how many streams got a new estimate. Blocks until all of them are done.
+     */
+    public int process() {
+        int count = dueCount;
+        if (count == 0) {
+            return 0;
+        }
+        int tasks = Math.min(ConcurrencyUtils.getNumberOfThreads(), count / MIN_STREAMS_PER_TASK);
+        if (tasks <= 1 || recordsToKeep >= CommonUtils.getThreadsBeginN_1D_FFT_2Threads()) {
+            analyze(0, count);
+        } else {
+            Future<?>[] futures = new Future<?>[tasks];
+            int chunk = (count + tasks - 1) / tasks;
+            for (int t = 0; t < tasks; t++) {
+                final int from = t * chunk;
+                final int to = Math.min(from + chunk, count);
+                futures[t] = ConcurrencyUtils.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        analyze(from, to);
+                    }
+                });
+            }
+            /*
+                Not ConcurrencyUtils.waitForCompletion: that gives up on the first interrupt, and
+                 the tasks still running would then be reading windows the caller is free to
+                 push() into again. Waiting them out and passing the interrupt on is safer.
+             */
+            boolean interrupted = false;
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("Analysis failed", e.getCause());
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (int d = 0; d < count; d++) {
+            isDue[due[d]] = false;
+        }
+        dueCount = 0;
+        return count;
+    }
+
+    private void analyze(int from, int to) {
+        Scratch s = scratch.get();
+        for (int d = from; d < to; d++) {
+            analyzeStream(due[d], s);
+        }
+    }
+
+    /*
+        One hop for one stream, see the class comment
+     */
+    private void analyzeStream(int stream, Scratch s) {
+        int base = stream * recordsToKeep;
+        int h = head[stream];
+        // Oldest sample first, same as SampleStore.copyWindow
+        int tail = recordsToKeep - h;
+        System.arraycopy(x, base + h, s.bufferX, 0, tail);
+        System.arraycopy(x, base, s.bufferX, tail, h);
+        System.arraycopy(y, base + h, s.bufferY, 0, tail);
+        System.arraycopy(y, base, s.bufferY, tail, h);
+        System.arraycopy(z, base + h, s.bufferZ, 0, tail);
+        System.arraycopy(z, base, s.bufferZ, tail, h);
+
+        // Last sample of the newest hop, and of the hop just before the window started (the oldest slot)
+        int slot = hopSlot[stream];
+        long newest = hopTimes[stream * hopSlots + (slot == 0 ? hopSlots : slot) - 1];
+        long start = hopTimes[stream * hopSlots + slot];
+        estimateTime[stream] = newest;
+        if (newest <= start) {
+            estimate[stream] = -1;
+            confidence[stream] = 0;
+            return;
+        }
+        // Beats per second per bin: the window's recordsToKeep samples took newest - start
+        float binWidth = (float) (1e9 / (newest - start));
+        int half = recordsToKeep / 2;
+        // The bins nearest MIN_BPM to MAX_BPM, same as BPMCounter.updateFrequencyAxis
+        int bandStart = Math.max(Math.round(BPMCounter.MIN_BPM / 60.0f / binWidth), 1);
+        int bandEnd = Math.min(Math.round(BPMCounter.MAX_BPM / 60.0f / binWidth) + 1, half - 1);
+        if (bandEnd <= bandStart) {
+            estimate[stream] = -1;
+            confidence[stream] = 0;
+            return;
+        }
+
+        plan.realForward(s.bufferX);
+        plan.realForward(s.bufferY);
+        plan.realForward(s.bufferZ);
+
+        boolean product = peakSearch == BPMCounter.PeakSearch.HARMONIC_PRODUCT;
+        int reach = PeakFinder.reach(half, half);
+        int harmonics = peakSearch == BPMCounter.PeakSearch.STRONGEST_BIN ? 1
+                : PeakFinder.harmonicsFor(bandStart, bandEnd, reach);
+        int searchEnd = Math.min(PeakFinder.searchEnd(bandEnd, harmonics, reach), half);
+        float[] bx = s.bufferX;
+        float[] by = s.bufferY;
+        float[] bz = s.bufferZ;
+        float[] fused = s.fused;
+        // Bin 0 has no imaginary part (realForward keeps bin n/2 in its place), so it's done separately
+        for (int i = Math.max(bandStart - 1, 1); i < searchEnd; i++) {
+            float power = bx[2*i]*bx[2*i] + bx[2*i+1]*bx[2*i+1]
+                    + by[2*i]*by[2*i] + by[2*i+1]*by[2*i+1]
+                    + bz[2*i]*bz[2*i] + bz[2*i+1]*bz[2*i+1];
+            fused[i] = (float) Math.sqrt(power);
+        }
+        if (bandStart == 1) {
+            fused[0] = (float) Math.sqrt(bx[0]*bx[0] + by[0]*by[0] + bz[0]*bz[0]);
+        }
+
+        int best = s.peaks.find(fused, bandStart, bandEnd, harmonics, reach, product);
+        float delta = PeakInterpolator.parabolic(fused, best);
+        estimate[stream] = (best + delta) * binWidth;
+        confidence[stream] = s.peaks.confidence();
+    }
+
+    /*
+        The stream's latest estimate in beats per second, or -1 if it doesn't have one yet
+     */
+    public float getEstimate(int stream) {
+        return estimate[stream];
+    }
+
+    /*
+        getConfidence() of the latest estimate, see BPMCounter.getConfidence
+     */
+    public float getConfidence(int stream) {
+        return confidence[stream];
+    }
+
+    /*
+        Timestamp of the newest sample that went into the latest estimate
+     */
+    public long getEstimateTime(int stream) {
+        return estimateTime[stream];
+    }
+}
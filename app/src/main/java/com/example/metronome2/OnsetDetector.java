@@ -0,0 +1,114 @@
+package com.example.metronome2;
+
+/*
+    Streaming onset detector: finds the moments the wrist starts a sharp movement, i.e. where a
+     beat lands, one short frame at a time instead of waiting for a whole window.
+
+    Samples are grouped into frames of FRAME_NANOS. For each frame:
+        energy   = sum over the frame of |a - mean|^2, the mean being a slow running average per
+                   axis, so gravity or a tilted sensor doesn't count as energy
+        strength = max(0, ln(energy) - ln(previous energy)), the rise in log energy. Taking the
+                   log makes a rise to twice the energy look the same for a light tap as for a
+                   big swing.
+        onset    = strength above its own running mean by THRESHOLD running deviations, and at
+                   least REFRACTORY_NANOS after the last onset (one movement often rises over
+                   two frames)
+
+    All of it is a few adds and multiplies per sample plus one log per frame, nothing is kept
+     besides the running values.
+
+    Same usage pattern as Resampler and Decimator:
+
+        if (onsets.push(x, y, z, timestamp)) {
+            use(onsets.time(), onsets.strength(), onsets.isOnset());
+        }
+ */
+class OnsetDetector {
+    static final long FRAME_NANOS = 50000000L;
+    private static final long REFRACTORY_NANOS = 150000000L;
+    private static final float THRESHOLD = 2.5f;
+    // Per frame weight of the running averages: the axis means (~2 s) and the strength statistics (~5 s)
+    private static final float MEAN_ALPHA = 0.025f;
+    private static final float STRENGTH_ALPHA = 0.01f;
+    // Keeps ln() finite while the wrist is perfectly still
+    private static final double ENERGY_FLOOR = 1e-6;
+
+    private float meanX, meanY, meanZ;
+    private boolean started = false;
+    private long frameStart;
+    private double energy = 0;
+    private float sumX, sumY, sumZ;
+    private int samples = 0;
+    private double lastLogEnergy = Double.NaN;
+
+    private float strengthMean = 0;
+    private float strengthDeviation = 0;
+    private long lastOnset;
+
+    private long outTime;
+    private float outStrength;
+    private boolean outOnset;
+
+    /*
+        Feeds one sample in. Returns true if it finished a frame, which can then be read with
+         time(), strength() and isOnset().
+     */
+    boolean push(float x, float y, float z, long timestamp) {
+        if (!started) {
+            started = true;
+            frameStart = timestamp;
+            lastOnset = timestamp - REFRACTORY_NANOS;
+            meanX = x;
+            meanY = y;
+            meanZ = z;
+        }
+        float dx = x - meanX;
+        float dy = y - meanY;
+        float dz = z - meanZ;
+        energy += dx * dx + dy * dy + dz * dz;
+        sumX += x;
+        sumY += y;
+        sumZ += z;
+        samples += 1;
+        if (timestamp - frameStart < FRAME_NANOS) {
+            return false;
+        }
+
+        // Means only move once per frame, towards the frame's own mean, slowly enough to leave the beats themselves alone
+        meanX += MEAN_ALPHA * (sumX / samples - meanX);
+        meanY += MEAN_ALPHA * (sumY / samples - meanY);
+        meanZ += MEAN_ALPHA * (sumZ / samples - meanZ);
+        sumX = sumY = sumZ = 0;
+        samples = 0;
+
+        double logEnergy = Math.log(energy + ENERGY_FLOOR);
+        float strength = Double.isNaN(lastLogEnergy) ? 0 : (float) Math.max(logEnergy - lastLogEnergy, 0);
+        lastLogEnergy = logEnergy;
+        energy = 0;
+        frameStart = timestamp;
+
+        outOnset = strength > strengthMean + THRESHOLD * strengthDeviation
+                && strengthDeviation > 0
+                && timestamp - lastOnset >= REFRACTORY_NANOS;
+        if (outOnset) {
+            lastOnset = timestamp;
+        }
+        strengthDeviation += STRENGTH_ALPHA * (Math.abs(strength - strengthMean) - strengthDeviation);
+        strengthMean += STRENGTH_ALPHA * (strength - strengthMean);
+        outTime = timestamp;
+        outStrength = strength;
+        return true;
+    }
+
+    long time() {
+        return outTime;
+    }
+
+    float strength() {
+        return outStrength;
+    }
+
+    boolean isOnset() {
+        return outOnset;
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.metronome2;
+
+/*
+    The peak search behind BPMCounter's PeakSearch modes, on its own so anything else with a
+     magnitude spectrum (MultiStreamBPMCounter) ranks its peaks exactly the same way.
+
+    One object per thread: find() leaves its results behind for second() and confidence(), same
+     usage pattern as Resampler and Decimator.
+
+        int reach = PeakFinder.reach(cleanEnd, spectrumEnd);
+        int harmonics = PeakFinder.harmonicsFor(from, to, reach);
+        int peak = peaks.find(magnitudes, from, to, harmonics, reach, false);
+        use(peak, peaks.second(), peaks.confidence());
+ */
+class PeakFinder {
+    // Weight of each harmonic in HARMONIC_SUM, starting with the fundamental. Its length is the
+    // highest harmonic either harmonic PeakSearch mode looks at.
+    static final float[] HARMONIC_WEIGHTS = {1, 0.8f, 0.64f};
+    /*
+        Local maxima find() keeps, best first. The peak's half and double can take up to two
+         each, so with 6 there's always one left over for the runner-up if there is one at all.
+     */
+    private static final int MAXIMA = 6;
+
+    private int second = -1;
+    private float confidence = 0;
+    private final int[] maxima = new int[MAXIMA];
+    private final float[] maximaScores = new float[MAXIMA];
+
+    /*
+        Harmonic h of index i can be scored with when h * i < reach, for a spectrum that's filled
+         in up to spectrumEnd but only trustworthy up to cleanEnd (the highest bin a score reads is
+         h * i + 1)
+     */
+    static int reach(int cleanEnd, int spectrumEnd) {
+        return Math.min(cleanEnd + 1, spectrumEnd - 1);
+    }
+
+    /*
+        How many harmonics (counting the fundamental itself) find() scores [from, to) with, 1
+         meaning no harmonics, i.e. the plain strongest bin.
+
+        That's the most any index in the band gets: every index is scored with all of its
+         harmonics that are below reach, so the bottom of the band can have its 3rd harmonic
+         while the top only has its 2nd. Left out harmonics only ever lower a sum, and the ones
+         the low indices get extra are exactly what tells a beat from its double: for a
+         pulse with a strong 2nd harmonic, m[k] + 0.8 m[2k] is barely ahead of the double's
+         m[2k] + 0.8 m[4k], it's the 0.64 m[3k] that settles it. That only holds as long as the
+         top of the band has its 2nd harmonic too, though: a tempo scored on its own bin alone
+         loses too easily to its half, which gets 0.8 of that bin plus whatever sway is there,
+         so if the top can't have any harmonics nothing does.
+        HARMONIC_PRODUCT goes the same way, see score() for how it compares products of
+         different lengths.
+     */
+    static int harmonicsFor(int from, int to, int reach) {
+        if (2 * (to - 1) >= reach) {
+            return 1;
+        }
+        int harmonics = HARMONIC_WEIGHTS.length;
+        while (harmonics > 2 && harmonics * from >= reach) {
+            harmonics -= 1;
+        }
+        return harmonics;
+    }
+
+    /*
+        End of the range find() reads for [from, to) with harmonics and reach: the band plus one
+         for the interpolation, and the highest harmonic scored
+     */
+    static int searchEnd(int to, int harmonics, int reach) {
+        return Math.max(to + 1, Math.min(harmonics * (to - 1) + 2, reach + 1));
+    }
+
+    /*
+        What find() ranks index i by: its own value, plus (or times, for HARMONIC_PRODUCT) the
+         strongest bin around each of its harmonics below reach, see BPMCounter.PeakSearch
+
+        A product is the geometric mean of its factors, so the ones with a harmonic fewer near the
+         top of the band can still be compared with the rest. Scoring the whole band with only
+         the harmonics that fit for its top, which is what keeps the raw products comparable,
+         meant just m[k] * m[2k] at the app's settings. That can't tell a beat from its double,
+         which gets m[2k] * m[4k], whenever the 4th harmonic is about as strong as the
+         fundamental, and it read 50-100 BPM as their double on up to half the hops. The 3rd
+         harmonic the low tempos get this way settles most of those.
+     */
+    private static float score(float[] values, int i, int harmonics, int reach, boolean product) {
+        float score = values[i];
+        int h = 2;
+        for (; h <= harmonics && h * i < reach; h++) {
+            int k = h * i;
+            float harmonic = Math.max(values[k], Math.max(values[k - 1], values[k + 1]));
+            if (product) {
+                score *= harmonic;
+            } else {
+                score += harmonic * HARMONIC_WEIGHTS[h - 1];
+            }
+        }
+        if (product && h > 2) {
+            score = (float) Math.pow(score, 1.0 / (h - 1));
+        }
+        return score;
+    }
+
+    /*
+        Finds the peak in [from, to) in a single pass and returns its index. With harmonics > 1
+         the indices are ranked by score() instead of by their own value, and the scores are never
+         stored anywhere: the scan only keeps the last two around to spot local maxima, and the
+         best MAXIMA of those.
+
+        Also leaves behind, for whoever needs them:
+            second()     - the index with the biggest value of its own apart from the peak, for
+                           TOP_TWO_AVERAGE
+            confidence() - 1 - runner-up / peak, where the runner-up is the best local maximum
+                           other than the peak. The peak's own slope doesn't count, but a
+                           separate peak at half or double the tempo does, so this drops
+                           towards 0 exactly when the estimate could be off by an octave.
+                           Except for HARMONIC_SUM, which leaves out the local maxima within a
+                           bin of half and double the peak: half the tempo scores at least 0.8
+                           of the peak's own bin by construction (its 2nd harmonic is the
+                           peak), so counting it would cap the confidence near 0.2 whatever the
+                           signal, and picking the right octave is what the sum is for. What's
+                           left says how far ahead of any unrelated tempo the peak is. A
+                           product has no such floor (half the tempo gets multiplied by its own
+                           bin), so it's still measured against everything.
+     */
+    int find(float[] values, int from, int to, int harmonics, int reach, boolean product) {
+        int found = 0;
+        // Scores of i - 2 and i - 1, with the edges of the range counting as -infinity
+        float before = Float.NEGATIVE_INFINITY;
+        float previous = Float.NEGATIVE_INFINITY;
+        int strongest = -1;
+        int secondStrongest = -1;
+        for (int i = from; i <= to; i++) {
+            float score = Float.NEGATIVE_INFINITY;
+            if (i < to) {
+                score = harmonics > 1 ? score(values, i, harmonics, reach, product) : values[i];
+                if (strongest == -1 || values[i] > values[strongest]) {
+                    secondStrongest = strongest;
+                    strongest = i;
+                } else if (secondStrongest == -1 || values[i] > values[secondStrongest]) {
+                    secondStrongest = i;
+                }
+            }
+            // i - 1 is a local maximum (the first index of it, on a plateau)
+            if (previous > before && previous >= score
+                    && (found < MAXIMA || previous > maximaScores[MAXIMA - 1])) {
+                // Insertion into the best MAXIMA, an equal score stays behind the earlier index
+                int slot = Math.min(found, MAXIMA - 1);
+                while (slot > 0 && previous > maximaScores[slot - 1]) {
+                    maxima[slot] = maxima[slot - 1];
+                    maximaScores[slot] = maximaScores[slot - 1];
+                    slot -= 1;
+                }
+                maxima[slot] = i - 1;
+                maximaScores[slot] = previous;
+                found = Math.min(found + 1, MAXIMA);
+            }
+            before = previous;
+            previous = score;
+        }
+        // Empty range, or nothing but NaNs, if nothing was found
+        int best = found > 0 ? maxima[0] : from;
+        float bestScore = found > 0 ? maximaScores[0] : Float.NEGATIVE_INFINITY;
+        second = strongest == best ? secondStrongest : strongest;
+
+        float runnerUp = Float.NEGATIVE_INFINITY;
+        for (int m = 1; m < found; m++) {
+            int index = maxima[m];
+            if (harmonics == 1 || product || (Math.abs(2 * index - best) > 2 && Math.abs(index - 2 * best) > 1)) {
+                runnerUp = maximaScores[m];
+                break;
+            }
+        }
+        if (!(bestScore > 0)) {
+            confidence = 0;
+        } else {
+            confidence = Math.max(0, Math.min(1, 1 - runnerUp / bestScore));
+        }
+        return best;
+    }
+
+    int second() {
+        return second;
+    }
+
+    float confidence() {
+        return confidence;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.metronome2;
+
+/*
+    Estimates where a spectral peak really is between bins. With only whole bins, BPM resolution
+     is (sample rate / recordsToKeep) * 60, which means long windows. Refining the peak lets us use
+     256 or 512 sample windows (less FFT work, less latency) without losing precision.
+
+    Every estimator looks at the peak bin k and its two neighbours and returns an offset delta in
+     bins, so the peak is at k + delta, with delta in [-0.5, 0.5] for a sensible peak.
+
+        PARABOLIC - fits a parabola through the three magnitudes
+        GAUSSIAN  - same, but on log magnitudes, which fits a windowed main lobe better
+        QUINN     - Quinn's second estimator, uses the complex bins (rectangular window)
+        JACOBSEN  - Jacobsen's estimator, uses the complex bins, very cheap
+
+    QUINN and JACOBSEN need the complex spectrum in FloatFFT_1D.realForward layout
+     (re at 2k, im at 2k + 1). If it isn't available they fall back to PARABOLIC.
+
+    QUINN and JACOBSEN are derived for a rectangular window. With any other WindowFunction they
+     come out biased by a few BPM, and GAUSSIAN is the one to use (it's the best of the lot on a
+     windowed peak).
+ */
+class PeakInterpolator {
+    private static final double SQRT_2_3 = Math.sqrt(2.0 / 3.0);
+    private static final double SQRT_6_24 = Math.sqrt(6.0) / 24.0;
+
+    private PeakInterpolator() {
+    }
+
+    /*
+        Returns the fractional bin offset of the peak at bin k. mag has to have valid values at
+         k - 1, k and k + 1 (and complex too, for the complex estimators).
+     */
+    static float offset(BPMCounter.PeakInterpolation method, float[] mag, float[] complex, int k) {
+        if (k < 1 || k + 1 >= mag.length) {
+            return 0;
+        }
+        switch (method) {
+            case GAUSSIAN:
+                return gaussian(mag, k);
+            case QUINN:
+                return complex == null ? parabolic(mag, k) : quinn(complex, k);
+            case JACOBSEN:
+                return complex == null ? parabolic(mag, k) : jacobsen(complex, k);
+            default:
+                return parabolic(mag, k);
+        }
+    }
+
+    private static float clamp(float delta) {
+        if (Float.isNaN(delta)) {
+            return 0;
+        }
+        return Math.max(-0.5f, Math.min(0.5f, delta));
+    }
+
+    static float parabolic(float[] mag, int k) {
+        float a = mag[k - 1];
+        float b = mag[k];
+        float c = mag[k + 1];
+        float denominator = a - 2 * b + c;
+        if (denominator == 0) {
+            return 0;
+        }
+        return clamp(0.5f * (a - c) / denominator);
+    }
+
+    static float gaussian(float[] mag, int k) {
+        if (mag[k - 1] <= 0 || mag[k] <= 0 || mag[k + 1] <= 0) {
+            return parabolic(mag, k);
+        }
+        double a = Math.log(mag[k - 1]);
+        double b = Math.log(mag[k]);
+        double c = Math.log(mag[k + 1]);
+        double denominator = a - 2 * b + c;
+        if (denominator == 0) {
+            return 0;
+        }
+        return clamp((float) (0.5 * (a - c) / denominator));
+    }
+
+    static float jacobsen(float[] complex, int k) {
+        float mr = complex[2 * (k - 1)];
+        float mi = complex[2 * (k - 1) + 1];
+        float zr = complex[2 * k];
+        float zi = complex[2 * k + 1];
+        float pr = complex[2 * (k + 1)];
+        float pi = complex[2 * (k + 1) + 1];
+
+        // delta = Re[(X[k-1] - X[k+1]) / (2X[k] - X[k-1] - X[k+1])]
+        float nr = mr - pr;
+        float ni = mi - pi;
+        float dr = 2 * zr - mr - pr;
+        float di = 2 * zi - mi - pi;
+        float d = dr * dr + di * di;
+        if (d == 0) {
+            return 0;
+        }
+        return clamp((nr * dr + ni * di) / d);
+    }
+
+    static float quinn(float[] complex, int k) {
+        float zr = complex[2 * k];
+        float zi = complex[2 * k + 1];
+        float z = zr * zr + zi * zi;
+        if (z == 0) {
+            return 0;
+        }
+        // ap = Re(X[k+1] / X[k]), am = Re(X[k-1] / X[k])
+        double ap = (complex[2 * (k + 1)] * zr + complex[2 * (k + 1) + 1] * zi) / z;
+        double am = (complex[2 * (k - 1)] * zr + complex[2 * (k - 1) + 1] * zi) / z;
+        double dp = -ap / (1 - ap);
+        double dm = am / (1 - am);
+        return clamp((float) ((dp + dm) / 2 + tau(dp * dp) - tau(dm * dm)));
+    }
+
+    private static double tau(double x) {
+        return 0.25 * Math.log(3 * x * x + 6 * x + 1)
+                - SQRT_6_24 * Math.log((x + 1 - SQRT_2_3) / (x + 1 + SQRT_2_3));
+    }
+}
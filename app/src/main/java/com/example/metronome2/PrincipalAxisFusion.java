@@ -0,0 +1,77 @@
+package com.example.metronome2;
+
+/*
+    Projects the window onto its principal axis (the direction the wrist moves the most in) and
+     runs a single FFT on that. The axis is the dominant eigenvector of the 3x3 covariance matrix
+     of the window, found by power iteration. The wrist doesn't rotate much between hops, so
+     starting from last hop's axis means a few iterations are enough.
+ */
+public class PrincipalAxisFusion implements AxisFusion {
+    private static final int ITERATIONS = 4;
+
+    // Last hop's principal axis, reused as the starting guess
+    private float ax = 1;
+    private float ay = 1;
+    private float az = 1;
+
+    @Override
+    public void estimate(BPMCounter counter, float[] result) {
+        float[] x = counter.window(SampleStore.X);
+        float[] y = counter.window(SampleStore.Y);
+        float[] z = counter.window(SampleStore.Z);
+        float[] fused = counter.fusedWindow();
+        int n = fused.length;
+
+        float mx = 0;
+        float my = 0;
+        float mz = 0;
+        for (int i = 0; i < n; i++) {
+            mx += x[i];
+            my += y[i];
+            mz += z[i];
+        }
+        mx /= n;
+        my /= n;
+        mz /= n;
+
+        /*
+            Covariance matrix, only the upper triangle since it's symmetric:
+                | cxx cxy cxz |
+                |     cyy cyz |
+                |         czz |
+         */
+        float cxx = 0, cxy = 0, cxz = 0, cyy = 0, cyz = 0, czz = 0;
+        for (int i = 0; i < n; i++) {
+            float dx = x[i] - mx;
+            float dy = y[i] - my;
+            float dz = z[i] - mz;
+            cxx += dx * dx;
+            cxy += dx * dy;
+            cxz += dx * dz;
+            cyy += dy * dy;
+            cyz += dy * dz;
+            czz += dz * dz;
+        }
+
+        for (int it = 0; it < ITERATIONS; it++) {
+            float nx = cxx * ax + cxy * ay + cxz * az;
+            float ny = cxy * ax + cyy * ay + cyz * az;
+            float nz = cxz * ax + cyz * ay + czz * az;
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length == 0) {
+                // No movement at all (e.g. the startup 0's), any axis is as good as another
+                nx = ny = nz = 1;
+                length = (float) Math.sqrt(3);
+            }
+            ax = nx / length;
+            ay = ny / length;
+            az = nz / length;
+        }
+
+        for (int i = 0; i < n; i++) {
+            fused[i] = (x[i] - mx) * ax + (y[i] - my) * ay + (z[i] - mz) * az;
+        }
+
+        counter.pickPeak(counter.spectrumOf(fused), fused, result);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.metronome2;
+
+import java.io.PrintStream;
+
+/*
+    Prints every message at or above a minimum level, e.g.
+
+        counter.setDiagnostics(new PrintStreamDiagnostics(System.out, DiagnosticsSink.DEBUG));
+
+    gets back the per-hop println output BPMCounter used to produce unconditionally.
+ */
+public class PrintStreamDiagnostics implements DiagnosticsSink {
+    private final PrintStream out;
+    private final int minLevel;
+
+    public PrintStreamDiagnostics(PrintStream out, int minLevel) {
+        this.out = out;
+        this.minLevel = minLevel;
+    }
+
+    @Override
+    public boolean isEnabled(int level) {
+        return level >= minLevel;
+    }
+
+    @Override
+    public void log(int level, String message) {
+        out.println(message);
+    }
+}
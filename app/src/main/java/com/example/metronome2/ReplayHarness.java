@@ -0,0 +1,702 @@
+package com.example.metronome2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Runs BPMCounter on the desktop JVM, no phone or watch needed: feeds recorded or synthetic
+     accelerometer traces through it and reports how fast and how accurate it was. Meant as the
+     before/after check for any change to the estimator.
+
+        java -cp <classes> com.example.metronome2.ReplayHarness [options] <input>...
+
+    Inputs:
+        synth:<bpm>[,<seconds>[,<rate>]]  synthetic metronome, see synthesize()
+        <file>.csv                        one sample per line: timestamp_ns,x,y,z (lines that
+                                           don't parse, like a header, are skipped)
+        <file>                            binary trace or SessionRecorder log, see readBinary()
+
+    Options (defaults in brackets, the first four are what MainActivity starts out with):
+        --window N         recordsToKeep [512]
+        --hop N            updateFrequency [16]
+        --resample HZ      setResampleRate, 0 = off [80]
+        --decimate N       setDecimation [4]
+        --mode M           SpectrumMode [FULL_FFT]
+        --interp I         PeakInterpolation [TOP_TWO_AVERAGE]
+        --search S         PeakSearch [STRONGEST_BIN]
+        --windowfn W       WindowFunction [RECTANGULAR]
+        --fusion F         max, summed, vector or principal [max]
+        --idle L,W,H       setIdleGate(L, W, H), off if not given
+        --expect BPM       true tempo of file inputs, for the error stats
+        --repeat N         replay each input N times and report the last, to warm up the JIT [3]
+        --max-error BPM    exit with status 1 if any input's mean error is above this
+        --min-rate S       exit with status 1 if any input ran slower than S samples/sec
+        --max-alloc B      exit with status 1 if any input allocated more than B bytes per hop
+                            after its first window, or if the JVM can't tell. Replays every
+                            input at least 5 times for it, see ALLOC_WARMUP
+        --confident C      getConfidence() an estimate needs to count as confident [0.1]
+        --record FILE      log the last replay of every input to FILE with a SessionRecorder
+
+    Per input it reports samples/sec (wall time of the replay alone, the trace is loaded into
+     memory first), percentiles of how long record() took on the calls that ran a hop, bytes
+     allocated per hop and per second (only on JVMs with com.sun.management), overall and in the
+     steady state after the first window (once anything set up lazily is in place), and the error
+     against the expected BPM, ignoring the hops before the first full window. The error is
+     reported once over all of those hops and once over only the confident ones, which is what
+     an app that hides unconfident estimates would show, and once more for what a TempoTracker
+     fed with the estimates (and --confident as its minimum) predicts at every hop. Session logs
+     also have the estimates the app came up with at the time, and each replayed estimate is
+     compared to the newest of those, to see what a change to the estimator (or its settings)
+     would have done to that session. Anything the counter logs at DiagnosticsSink.INFO (like a
+     harmonic PeakSearch that had to go without its harmonics) is listed last, as notes.
+
+    Only uses java.io and reflection, so it compiles along with the app like the JTransforms
+     benchmarks do.
+ */
+public class ReplayHarness {
+    private static int window = 512;
+    private static int hop = 16;
+    private static float resample = 80;
+    private static int decimate = 4;
+    private static BPMCounter.SpectrumMode mode = BPMCounter.SpectrumMode.FULL_FFT;
+    private static BPMCounter.PeakInterpolation interp = BPMCounter.PeakInterpolation.TOP_TWO_AVERAGE;
+    private static BPMCounter.PeakSearch search = BPMCounter.PeakSearch.STRONGEST_BIN;
+    private static WindowFunction windowFunction = WindowFunction.RECTANGULAR;
+    private static String fusion = "max";
+    private static float idleLevel = 0;
+    private static float wakeLevel = 0;
+    private static int idleHops = 0;
+    private static float expect = Float.NaN;
+    private static int repeat = 3;
+    private static float maxError = Float.NaN;
+    private static float minRate = Float.NaN;
+    private static float maxAlloc = Float.NaN;
+    /*
+        Replays --max-alloc does per input: ALLOC_WARMUP just to warm up, which is where the
+         classes get loaded and the JIT compiles the hop, then ALLOC_CHECKED that are checked,
+         going by the one that allocated least. Even warmed up, the JIT sometimes recompiles a
+         method mid replay, and deoptimizing its code puts the objects escape analysis had done
+         away with back on the heap, a few KB at once (with -Xint, or escape analysis off, it
+         never happens). That's the JVM, not the counter, and it only hits a replay here and
+         there; an allocation in the counter's hop code happens in every one of them.
+     */
+    private static final int ALLOC_WARMUP = 2;
+    private static final int ALLOC_CHECKED = 3;
+    private static float confident = 0.1f;
+    private static String record = null;
+
+    private ReplayHarness() {
+    }
+
+    /*
+        A whole trace in memory, as parallel columns
+     */
+    static class Trace {
+        final String name;
+        long[] timestamp = new long[1024];
+        float[] x = new float[1024];
+        float[] y = new float[1024];
+        float[] z = new float[1024];
+        int size = 0;
+        // Known tempo, or NaN
+        float bpm = Float.NaN;
+        // Estimates that were recorded along with the samples (session logs only), in BPM
+        long[] estimateTime = new long[0];
+        float[] recordedBpm = new float[0];
+        int estimates = 0;
+
+        Trace(String name) {
+            this.name = name;
+        }
+
+        void add(long t, float x, float y, float z) {
+            if (size == timestamp.length) {
+                timestamp = Arrays.copyOf(timestamp, size * 2);
+                this.x = Arrays.copyOf(this.x, size * 2);
+                this.y = Arrays.copyOf(this.y, size * 2);
+                this.z = Arrays.copyOf(this.z, size * 2);
+            }
+            timestamp[size] = t;
+            this.x[size] = x;
+            this.y[size] = y;
+            this.z[size] = z;
+            size += 1;
+        }
+
+        void addEstimate(long t, float bpm) {
+            if (estimates == estimateTime.length) {
+                int capacity = Math.max(estimates * 2, 256);
+                estimateTime = Arrays.copyOf(estimateTime, capacity);
+                recordedBpm = Arrays.copyOf(recordedBpm, capacity);
+            }
+            estimateTime[estimates] = t;
+            recordedBpm[estimates] = bpm;
+            estimates += 1;
+        }
+    }
+
+    /*
+        Result of one replay
+     */
+    static class Report {
+        double samplesPerSecond;
+        long[] hopNanos;
+        int hops;
+        // Hops the idle gate skipped
+        int idleHops;
+        long allocatedBytes = -1;
+        // Over the hops after the first window
+        long steadyAllocatedBytes = -1;
+        int steadyHops;
+        double seconds;
+        double meanError = Double.NaN;
+        double p90Error = Double.NaN;
+        double within2 = Double.NaN;
+        double meanConfidence = Double.NaN;
+        // Fraction of the hops that were confident, and the mean error over just those
+        double confidentShare = Double.NaN;
+        double confidentError = Double.NaN;
+        // Over the hops the tracker had a tempo for, and the fraction of hops that was
+        double trackedShare = Double.NaN;
+        double trackedError = Double.NaN;
+        double trackedP90 = Double.NaN;
+        float lastBpm = -1;
+        // Against the recorded estimates: over how many hops, and the mean and largest difference
+        int comparedHops = 0;
+        double recordedDifference = Double.NaN;
+        double recordedMaxDifference = Double.NaN;
+        // What the counter logged at DiagnosticsSink.INFO, one message per line
+        String notes = "";
+    }
+
+    public static void main(String[] args) throws IOException {
+        int first = parseArguments(args);
+        if (first == args.length) {
+            System.out.println("Usage: ReplayHarness [options] synth:<bpm>[,<seconds>[,<rate>]] | <file.csv> | <file> ...");
+            return;
+        }
+        boolean failed = false;
+        for (int i = first; i < args.length; i++) {
+            Trace trace = load(args[i]);
+            if (Float.isNaN(trace.bpm)) {
+                trace.bpm = expect;
+            }
+            Report report = null;
+            int replays = Float.isNaN(maxAlloc) ? repeat : Math.max(repeat, ALLOC_WARMUP + ALLOC_CHECKED);
+            // Least steady state allocation per hop over the replays after the warm-up, -1 if unknown
+            double leastAllocated = -1;
+            for (int r = 0; r < replays; r++) {
+                report = replay(trace, r == replays - 1 ? record : null);
+                if (r >= ALLOC_WARMUP && report.steadyAllocatedBytes >= 0 && report.steadyHops > 0) {
+                    double perHop = (double) report.steadyAllocatedBytes / report.steadyHops;
+                    if (leastAllocated < 0 || perHop < leastAllocated) {
+                        leastAllocated = perHop;
+                    }
+                }
+            }
+            print(trace, report);
+            if (!Float.isNaN(maxError) && !(report.meanError <= maxError)) {
+                System.out.println("  FAIL: mean error above " + maxError + " BPM");
+                failed = true;
+            }
+            if (!Float.isNaN(minRate) && report.samplesPerSecond < minRate) {
+                System.out.println("  FAIL: slower than " + minRate + " samples/sec");
+                failed = true;
+            }
+            if (!Float.isNaN(maxAlloc)) {
+                if (leastAllocated < 0) {
+                    System.out.println("  FAIL: no steady state allocation to check against " + maxAlloc + " bytes/hop");
+                    failed = true;
+                } else {
+                    System.out.printf("  steady      least %.1f bytes/hop after the first window, over replays %d to %d%n",
+                            leastAllocated, ALLOC_WARMUP + 1, replays);
+                    if (leastAllocated > maxAlloc) {
+                        System.out.println("  FAIL: allocates more than " + maxAlloc + " bytes/hop");
+                        failed = true;
+                    }
+                }
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /*
+        Reads the options, returns the index of the first input
+     */
+    static int parseArguments(String[] args) {
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[i + 1];
+            switch (option) {
+                case "--window":
+                    window = Integer.parseInt(value);
+                    break;
+                case "--hop":
+                    hop = Integer.parseInt(value);
+                    break;
+                case "--resample":
+                    resample = Float.parseFloat(value);
+                    break;
+                case "--decimate":
+                    decimate = Integer.parseInt(value);
+                    break;
+                case "--mode":
+                    mode = BPMCounter.SpectrumMode.valueOf(value);
+                    break;
+                case "--interp":
+                    interp = BPMCounter.PeakInterpolation.valueOf(value);
+                    break;
+                case "--search":
+                    search = BPMCounter.PeakSearch.valueOf(value);
+                    break;
+                case "--windowfn":
+                    windowFunction = WindowFunction.valueOf(value);
+                    break;
+                case "--fusion":
+                    fusion = value;
+                    break;
+                case "--idle":
+                    String[] levels = value.split(",");
+                    if (levels.length != 3) {
+                        throw new IllegalArgumentException("--idle takes idleLevel,wakeLevel,idleHops");
+                    }
+                    idleLevel = Float.parseFloat(levels[0]);
+                    wakeLevel = Float.parseFloat(levels[1]);
+                    idleHops = Integer.parseInt(levels[2]);
+                    break;
+                case "--expect":
+                    expect = Float.parseFloat(value);
+                    break;
+                case "--repeat":
+                    repeat = Math.max(Integer.parseInt(value), 1);
+                    break;
+                case "--max-error":
+                    maxError = Float.parseFloat(value);
+                    break;
+                case "--min-rate":
+                    minRate = Float.parseFloat(value);
+                    break;
+                case "--max-alloc":
+                    maxAlloc = Float.parseFloat(value);
+                    break;
+                case "--confident":
+                    confident = Float.parseFloat(value);
+                    break;
+                case "--record":
+                    record = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+            i += 2;
+        }
+        return i;
+    }
+
+    /*
+        A counter configured from the options
+     */
+    static BPMCounter newCounter() {
+        BPMCounter counter = new BPMCounter(window, hop);
+        counter.setResampleRate(resample);
+        counter.setDecimation(decimate);
+        counter.setSpectrumMode(mode);
+        counter.setPeakInterpolation(interp);
+        counter.setPeakSearch(search);
+        counter.setWindowFunction(windowFunction);
+        counter.setIdleGate(idleLevel, wakeLevel, idleHops);
+        switch (fusion) {
+            case "summed":
+                counter.setAxisFusion(new SummedPowerFusion());
+                break;
+            case "vector":
+                counter.setAxisFusion(new VectorMagnitudeFusion());
+                break;
+            case "principal":
+                counter.setAxisFusion(new PrincipalAxisFusion());
+                break;
+            default:
+                counter.setAxisFusion(new MaxPeakFusion());
+        }
+        return counter;
+    }
+
+    static Trace load(String input) throws IOException {
+        if (input.startsWith("synth:")) {
+            String[] parts = input.substring("synth:".length()).split(",");
+            float bpm = Float.parseFloat(parts[0]);
+            float seconds = parts.length > 1 ? Float.parseFloat(parts[1]) : 120;
+            float rate = parts.length > 2 ? Float.parseFloat(parts[2]) : 100;
+            return synthesize(input, bpm, seconds, rate, 1);
+        }
+        if (input.endsWith(".csv")) {
+            return readCsv(input);
+        }
+        return readBinary(input);
+    }
+
+    /*
+        A wrist keeping time with a metronome: a sharp pulse on every beat (mostly on y, some on
+         z), a faint sway on x at half the tempo, sensor noise, a 9 Hz tremor, and timestamps
+         that jitter around the nominal rate the way real sensor events do.
+     */
+    static Trace synthesize(String name, float bpm, float seconds, float rate, long seed) {
+        Trace trace = new Trace(name);
+        trace.bpm = bpm;
+        Random random = new Random(seed);
+        double period = 1e9 / rate;
+        double beat = 60.0 / bpm;
+        long t = 1000000000L;
+        int count = (int) (seconds * rate);
+        for (int i = 0; i < count; i++) {
+            t += (long) (period * (1 + 0.05 * random.nextGaussian()));
+            double s = (t - 1000000000L) / 1e9;
+            double phase = (s % beat) / beat;
+            // Short decaying pulse at the start of every beat
+            double pulse = Math.exp(-phase * 12) * Math.cos(2 * Math.PI * phase * 2);
+            double sway = Math.sin(Math.PI * s / beat);
+            double tremor = 0.3 * Math.sin(2 * Math.PI * 9 * s);
+            trace.add(t,
+                    (float) (0.05 * sway + 0.2 * random.nextGaussian()),
+                    (float) (pulse + tremor + 0.2 * random.nextGaussian()),
+                    (float) (0.3 * pulse + 0.2 * random.nextGaussian()));
+        }
+        return trace;
+    }
+
+    static Trace readCsv(String path) throws IOException {
+        Trace trace = new Trace(path);
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length < 4) {
+                    continue;
+                }
+                try {
+                    trace.add(Long.parseLong(parts[0].trim()), Float.parseFloat(parts[1].trim()),
+                            Float.parseFloat(parts[2].trim()), Float.parseFloat(parts[3].trim()));
+                } catch (NumberFormatException e) {
+                    // Header or comment
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+    /*
+        Binary trace: big-endian int magic (0x42504d53, "BPMS") and int version, then
+            version 1: one record per sample until the end of the file: long timestamp_ns,
+             float x, y, z
+            version 2: a SessionRecorder log, see there
+     */
+    static final int BINARY_MAGIC = SessionRecorder.MAGIC;
+
+    static Trace readBinary(String path) throws IOException {
+        Trace trace = new Trace(path);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException(path + " is not a binary trace");
+            }
+            int version = in.readInt();
+            if (version == SessionRecorder.VERSION) {
+                readSessions(in, trace);
+                return trace;
+            }
+            if (version != 1) {
+                throw new IOException(path + ": unsupported trace version " + version);
+            }
+            while (true) {
+                long t;
+                try {
+                    t = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                trace.add(t, in.readFloat(), in.readFloat(), in.readFloat());
+            }
+        } finally {
+            in.close();
+        }
+        return trace;
+    }
+
+    /*
+        The records of a SessionRecorder log. A record cut short at the end (the app died while
+         writing) is dropped.
+     */
+    static void readSessions(DataInputStream in, Trace trace) throws IOException {
+        long t = 0;
+        float resolution = 0;
+        try {
+            while (true) {
+                int tag = in.read();
+                if (tag == -1) {
+                    break;
+                }
+                switch (tag) {
+                    case SessionRecorder.SESSION:
+                        t = in.readLong();
+                        resolution = in.readFloat();
+                        break;
+                    case SessionRecorder.SAMPLE:
+                        t += in.readInt();
+                        trace.add(t, in.readShort() * resolution, in.readShort() * resolution,
+                                in.readShort() * resolution);
+                        break;
+                    case SessionRecorder.ESTIMATE:
+                        float result = in.readFloat();
+                        // Confidence, read before the estimate is kept so a cut off one isn't
+                        in.readFloat();
+                        trace.addEstimate(t, result * 60);
+                        break;
+                    default:
+                        throw new IOException(trace.name + ": unknown record " + tag + " after "
+                                + trace.size + " samples");
+                }
+            }
+        } catch (EOFException e) {
+            // Truncated last record
+        }
+    }
+
+    static Report replay(Trace trace, String recordPath) throws IOException {
+        BPMCounter counter = newCounter();
+        ByteArrayOutputStream notes = new ByteArrayOutputStream();
+        counter.setDiagnostics(new PrintStreamDiagnostics(new PrintStream(notes, true), DiagnosticsSink.INFO));
+        SessionRecorder session = null;
+        if (recordPath != null) {
+            File file = new File(recordPath);
+            // Appending to the log of another run wouldn't help anyone
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Can't replace " + recordPath);
+            }
+            session = new SessionRecorder(file);
+            counter.setSessionRecorder(session);
+        }
+        Report report = new Report();
+        // Enough room for a hop every hop samples, at the input rate or the resampled one
+        double duration = trace.size > 1 ? (trace.timestamp[trace.size - 1] - trace.timestamp[0]) / 1e9 : 0;
+        int maxSamples = (int) Math.max(trace.size, duration * resample / Math.max(decimate, 1)) + 1;
+        long[] hopNanos = new long[maxSamples / Math.max(hop, 1) + 1];
+        float[] estimates = new float[hopNanos.length];
+        float[] confidences = new float[hopNanos.length];
+        float[] tracked = new float[hopNanos.length];
+        TempoTracker tracker = new TempoTracker(confident);
+        int hops = 0;
+        int recorded = 0;
+        double differenceSum = 0;
+        double differenceMax = 0;
+
+        // The first window's worth of hops still sets things up, see steadyAllocatedBytes
+        int warmup = window / Math.max(hop, 1);
+        long allocatedWarm = -1;
+        // What an allocatedBytes() call allocates itself (a boxed Long and the varargs array), so
+        // the one in the middle of the replay doesn't count against the counter
+        long probe = allocatedBytes();
+        long probeBytes = allocatedBytes() - probe;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < trace.size; i++) {
+            long before = System.nanoTime();
+            float result = counter.recordNanos(trace.x[i], trace.y[i], trace.z[i], trace.timestamp[i]);
+            if (result != -1 && hops < hopNanos.length) {
+                hopNanos[hops] = System.nanoTime() - before;
+                estimates[hops] = result * 60;
+                confidences[hops] = counter.getConfidence();
+                if (counter.isIdle()) {
+                    report.idleHops += 1;
+                }
+                tracker.update(result, confidences[hops], trace.timestamp[i]);
+                tracked[hops] = tracker.tempoAt(trace.timestamp[i]) * 60;
+                // Newest recorded estimate as of this sample
+                while (recorded < trace.estimates && trace.estimateTime[recorded] <= trace.timestamp[i]) {
+                    recorded += 1;
+                }
+                if (recorded > 0) {
+                    double difference = Math.abs(estimates[hops] - trace.recordedBpm[recorded - 1]);
+                    differenceSum += difference;
+                    differenceMax = Math.max(differenceMax, difference);
+                    report.comparedHops += 1;
+                }
+                hops += 1;
+                if (hops == warmup) {
+                    allocatedWarm = allocatedBytes();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        if (session != null) {
+            session.close();
+        }
+        if (report.comparedHops > 0) {
+            report.recordedDifference = differenceSum / report.comparedHops;
+            report.recordedMaxDifference = differenceMax;
+        }
+
+        report.seconds = elapsed / 1e9;
+        report.samplesPerSecond = trace.size / report.seconds;
+        report.hops = hops;
+        report.hopNanos = Arrays.copyOf(hopNanos, hops);
+        Arrays.sort(report.hopNanos);
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            report.allocatedBytes = allocatedAfter - allocatedBefore;
+        }
+        if (allocatedWarm >= 0 && allocatedAfter >= 0) {
+            report.steadyAllocatedBytes = Math.max(allocatedAfter - allocatedWarm - probeBytes, 0);
+            report.steadyHops = hops - warmup;
+        }
+        report.lastBpm = hops > 0 ? estimates[hops - 1] : -1;
+        report.notes = notes.toString();
+
+        if (!Float.isNaN(trace.bpm)) {
+            // The first window's worth of hops still has startup zeros in it
+            int skip = Math.min(window / Math.max(hop, 1), hops);
+            double[] errors = new double[hops - skip];
+            double sum = 0;
+            int close = 0;
+            double confidenceSum = 0;
+            double confidentSum = 0;
+            int confidentHops = 0;
+            double[] trackedErrors = new double[hops - skip];
+            double trackedSum = 0;
+            int trackedHops = 0;
+            for (int h = skip; h < hops; h++) {
+                double error = Math.abs(estimates[h] - trace.bpm);
+                errors[h - skip] = error;
+                sum += error;
+                if (error <= 2) {
+                    close += 1;
+                }
+                confidenceSum += confidences[h];
+                if (tracked[h] >= 0) {
+                    trackedErrors[trackedHops] = Math.abs(tracked[h] - trace.bpm);
+                    trackedSum += trackedErrors[trackedHops];
+                    trackedHops += 1;
+                }
+                if (confidences[h] >= confident) {
+                    confidentSum += error;
+                    confidentHops += 1;
+                }
+            }
+            if (errors.length > 0) {
+                Arrays.sort(errors);
+                report.meanError = sum / errors.length;
+                report.p90Error = errors[(int) (0.9 * (errors.length - 1))];
+                report.within2 = (double) close / errors.length;
+                report.meanConfidence = confidenceSum / errors.length;
+                report.confidentShare = (double) confidentHops / errors.length;
+                report.confidentError = confidentHops > 0 ? confidentSum / confidentHops : Double.NaN;
+                report.trackedShare = (double) trackedHops / errors.length;
+                if (trackedHops > 0) {
+                    Arrays.sort(trackedErrors, 0, trackedHops);
+                    report.trackedError = trackedSum / trackedHops;
+                    report.trackedP90 = trackedErrors[(int) (0.9 * (trackedHops - 1))];
+                }
+            }
+        }
+        return report;
+    }
+
+    static void print(Trace trace, Report report) {
+        System.out.println(trace.name + ": " + trace.size + " samples, " + report.hops + " hops"
+                + (report.idleHops > 0 ? " (" + report.idleHops + " idle)" : ""));
+        System.out.printf("  throughput  %.0f samples/sec%n", report.samplesPerSecond);
+        if (report.hops > 0) {
+            System.out.printf("  hop latency p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us%n",
+                    percentile(report.hopNanos, 0.5) / 1e3, percentile(report.hopNanos, 0.9) / 1e3,
+                    percentile(report.hopNanos, 0.99) / 1e3, report.hopNanos[report.hops - 1] / 1e3);
+        }
+        if (report.allocatedBytes >= 0) {
+            System.out.printf("  allocation  %.1f bytes/hop, %.0f bytes/sec", (double) report.allocatedBytes
+                    / Math.max(report.hops, 1), report.allocatedBytes / report.seconds);
+            if (report.steadyAllocatedBytes >= 0) {
+                System.out.printf(", %.1f bytes/hop after the first window", (double) report.steadyAllocatedBytes
+                        / Math.max(report.steadyHops, 1));
+            }
+            System.out.println();
+        } else {
+            System.out.println("  allocation  not available on this JVM");
+        }
+        if (!Double.isNaN(report.meanError)) {
+            System.out.printf("  BPM error   mean %.2f, p90 %.2f, within 2 BPM %.1f%% (expected %.1f, last %.1f)%n",
+                    report.meanError, report.p90Error, 100 * report.within2, trace.bpm, report.lastBpm);
+            System.out.printf("  confidence  mean %.2f, %.1f%% of hops at %.2f or more, mean error %.2f on those%n",
+                    report.meanConfidence, 100 * report.confidentShare, confident, report.confidentError);
+            System.out.printf("  tracked     %.1f%% of hops, mean error %.2f, p90 %.2f%n",
+                    100 * report.trackedShare, report.trackedError, report.trackedP90);
+        } else {
+            System.out.printf("  last BPM    %.1f%n", report.lastBpm);
+        }
+        if (trace.estimates > 0) {
+            System.out.printf("  recorded    %d estimates (last %.1f), replay differs by mean %.2f, max %.2f BPM over %d hops%n",
+                    trace.estimates, trace.recordedBpm[trace.estimates - 1], report.recordedDifference,
+                    report.recordedMaxDifference, report.comparedHops);
+        }
+        for (String note : report.notes.split("\n")) {
+            if (!note.isEmpty()) {
+                System.out.println("  note        " + note.trim());
+            }
+        }
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[(int) (p * (sorted.length - 1))];
+    }
+
+    private static Method allocatedBytesMethod;
+    private static Object threadBean;
+    private static boolean allocationLookupDone = false;
+
+    /*
+        Bytes allocated so far by the current thread, or -1 if the JVM can't tell us. Goes through
+         reflection since java.lang.management (and com.sun.management on top of it) aren't part
+         of the Android API this compiles against.
+     */
+    static long allocatedBytes() {
+        if (!allocationLookupDone) {
+            allocationLookupDone = true;
+            try {
+                Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+                Class<?> beanInterface = Class.forName("com.sun.management.ThreadMXBean");
+                if (beanInterface.isInstance(threadBean)) {
+                    allocatedBytesMethod = beanInterface.getMethod("getThreadAllocatedBytes", long.class);
+                }
+            } catch (ReflectiveOperationException e) {
+                allocatedBytesMethod = null;
+            }
+        }
+        if (allocatedBytesMethod == null) {
+            return -1;
+        }
+        try {
+            Object bytes = allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+            return (Long) bytes;
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+}
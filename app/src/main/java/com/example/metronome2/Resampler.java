@@ -0,0 +1,132 @@
+package com.example.metronome2;
+
+/*
+    Turns accelerometer samples that arrive whenever the sensor feels like it into samples exactly
+     one period apart, by linear interpolation between the two input samples that straddle each
+     output time.
+
+        input   x---x-x----x--x---x-----x
+        output  o----o----o----o----o----o
+                     |
+                     interpolated between the two inputs on either side
+
+    Android only promises SENSOR_DELAY_* as a hint: the real rate wanders by a few percent, events
+     get batched, and the timestamps jitter. The FFT assumes evenly spaced samples, so rather than
+     measuring the average spacing of every window (and rebuilding the frequency axis whenever it
+     moves), the counter can run at a fixed rate and never touch the axis again.
+
+    Linear interpolation is the cheapest interpolator there is (two multiply-adds per axis per
+     output sample). Its frequency response only starts to droop near the input Nyquist rate,
+     which is far above the 0.67 - 3.33 Hz BPM band, so a proper polyphase filter wouldn't buy
+     anything here.
+
+    Usage, with nothing allocated per sample:
+
+        resampler.push(x, y, z, timestampNanos);
+        while (resampler.next()) {
+            use(resampler.x(), resampler.y(), resampler.z(), resampler.time());
+        }
+ */
+class Resampler {
+    /*
+        If two input samples are further apart than this, interpolating across the gap would just
+         invent a straight line, so the output clock restarts at the newer sample instead
+     */
+    static final long MAX_GAP_NANOS = 1000000000L;
+
+    private final long periodNanos;
+
+    // The two input samples the next output time falls between (previous, latest)
+    private long t0;
+    private float x0;
+    private float y0;
+    private float z0;
+    private long t1;
+    private float x1;
+    private float y1;
+    private float z1;
+    private boolean started = false;
+
+    // Time of the next output sample
+    private long nextTime;
+
+    // The output sample produced by the last next() call
+    private long outTime;
+    private float outX;
+    private float outY;
+    private float outZ;
+
+    Resampler(float rate) {
+        periodNanos = Math.round(1e9 / rate);
+    }
+
+    long periodNanos() {
+        return periodNanos;
+    }
+
+    /*
+        Adds an input sample. Samples that aren't newer than the previous one (duplicates,
+         reordered batches) are ignored.
+     */
+    void push(float x, float y, float z, long timestampNanos) {
+        if (started && timestampNanos <= t1) {
+            return;
+        }
+        t0 = t1;
+        x0 = x1;
+        y0 = y1;
+        z0 = z1;
+        t1 = timestampNanos;
+        x1 = x;
+        y1 = y;
+        z1 = z;
+        if (!started || t1 - t0 > MAX_GAP_NANOS) {
+            // Nothing to interpolate from yet: the next output is this sample as-is
+            t0 = t1;
+            x0 = x1;
+            y0 = y1;
+            z0 = z1;
+            nextTime = t1;
+            started = true;
+        }
+    }
+
+    /*
+        Produces the next output sample if the input has got far enough to interpolate it. Returns
+         false once it needs more input.
+     */
+    boolean next() {
+        if (!started || nextTime > t1) {
+            return false;
+        }
+        if (t1 == t0) {
+            outX = x1;
+            outY = y1;
+            outZ = z1;
+        } else {
+            float frac = (float) (nextTime - t0) / (t1 - t0);
+            outX = x0 + (x1 - x0) * frac;
+            outY = y0 + (y1 - y0) * frac;
+            outZ = z0 + (z1 - z0) * frac;
+        }
+        outTime = nextTime;
+        nextTime += periodNanos;
+        return true;
+    }
+
+    long time() {
+        return outTime;
+    }
+
+    float x() {
+        return outX;
+    }
+
+    float y() {
+        return outY;
+    }
+
+    float z() {
+        return outZ;
+    }
+}
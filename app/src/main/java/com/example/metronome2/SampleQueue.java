@@ -0,0 +1,85 @@
+package com.example.metronome2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Lock-free single-producer/single-consumer queue of accelerometer samples, used to hand samples
+     from the sensor callback to the estimation worker without ever blocking the sensor thread.
+
+    Like SampleStore, samples live in parallel primitive arrays, so nothing is allocated per
+     sample. head and tail only ever increase; the slot index is the position masked by the
+     capacity (which is rounded up to a power of two). Exactly one thread may call offer() and
+     exactly one other thread may call poll().
+ */
+class SampleQueue {
+    private final int mask;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private final long[] timestamp;
+
+    // Next slot to read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // Samples dropped because the consumer fell a whole queue behind
+    private volatile long dropped = 0;
+
+    SampleQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        x = new float[size];
+        y = new float[size];
+        z = new float[size];
+        timestamp = new long[size];
+    }
+
+    /*
+        Adds a sample. Returns false (and drops the sample) if the queue is full, since waiting
+         for space would mean blocking the sensor callback.
+     */
+    boolean offer(float x, float y, float z, long timestampNanos) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped += 1;
+            return false;
+        }
+        int idx = (int) (t & mask);
+        this.x[idx] = x;
+        this.y[idx] = y;
+        this.z[idx] = z;
+        this.timestamp[idx] = timestampNanos;
+        /*
+            A full volatile write, not lazySet: lazySet would publish the slot writes above just as
+             well, but AsyncBPMCounter reads workerParked right after this, and only a volatile
+             write keeps that read from being done before the consumer can see the sample. See
+             AsyncBPMCounter.work().
+         */
+        tail.set(t + 1);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /*
+        Takes the oldest sample and records it into counter. Returns the estimate from
+         BPMCounter.recordNanos(), or NaN if the queue was empty.
+     */
+    float poll(BPMCounter counter) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return Float.NaN;
+        }
+        int idx = (int) (h & mask);
+        float result = counter.recordNanos(x[idx], y[idx], z[idx], timestamp[idx]);
+        head.lazySet(h + 1);
+        return result;
+    }
+
+    long dropped() {
+        return dropped;
+    }
+}
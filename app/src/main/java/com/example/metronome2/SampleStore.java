@@ -0,0 +1,184 @@
+package com.example.metronome2;
+
+/*
+    Fixed-size circular buffer of accelerometer samples, stored as parallel primitive columns
+     (struct-of-arrays) instead of one object per sample.
+
+        x         = [x0, x1, x2, ..., x1023]
+        y         = [y0, y1, y2, ..., y1023]
+        z         = [z0, z1, z2, ..., z1023]
+        timestamp = [t0, t1, t2, ..., t1023]
+                         ^
+                        head
+
+    head is the next slot to be written. Once the buffer is full, head always points at the
+     oldest sample, so the most recent n samples live in [head - n, head) wrapped around the end
+     of the arrays. Nothing is ever allocated after construction: add() just overwrites a slot
+     in each column and moves head forward.
+
+    Everything reading samples out asks for the most recent n of them, so the store can be
+     bigger than the window being analyzed. BPMCounter keeps it as big as the biggest window its
+     AutoTuner can pick: the window can then grow into samples that are already there instead
+     of into zeros.
+ */
+class SampleStore {
+    static final int X = 0;
+    static final int Y = 1;
+    static final int Z = 2;
+
+    private int capacity;
+    private float[] x;
+    private float[] y;
+    private float[] z;
+    private long[] timestamp;
+    private int head = 0;
+
+    SampleStore(int capacity) {
+        this.capacity = capacity;
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+        timestamp = new long[capacity];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /*
+        Fills every slot with a zero sample at the given time. Used to prime the buffer so the
+         first windows have trailing 0s instead of garbage.
+     */
+    void fill(long time) {
+        for (int i = 0; i < capacity; i++) {
+            x[i] = 0;
+            y[i] = 0;
+            z[i] = 0;
+            timestamp[i] = time;
+        }
+        head = 0;
+    }
+
+    /*
+        Changes the capacity, keeping the most recent samples (as many as fit). When growing, the
+         extra older slots get zero samples, with timestamps continuing backwards at the average
+         spacing of the kept ones so the measured sample rate doesn't jump.
+
+        This allocates new columns, so it's meant for occasional reconfiguration, not every hop.
+     */
+    void resize(int newCapacity) {
+        int keep = Math.min(capacity, newCapacity);
+        float[] newX = new float[newCapacity];
+        float[] newY = new float[newCapacity];
+        float[] newZ = new float[newCapacity];
+        long[] newTimestamp = new long[newCapacity];
+
+        // Kept samples go at the end, oldest first, so with head = 0 they're the newest window
+        int offset = newCapacity - keep;
+        for (int i = 0; i < keep; i++) {
+            int idx = indexOf(keep, i);
+            newX[offset + i] = x[idx];
+            newY[offset + i] = y[idx];
+            newZ[offset + i] = z[idx];
+            newTimestamp[offset + i] = timestamp[idx];
+        }
+        long first = newTimestamp[offset];
+        long spacing = keep > 1 ? (newTimestamp[newCapacity - 1] - first) / (keep - 1) : 0;
+        for (int i = 0; i < offset; i++) {
+            newTimestamp[i] = first - (offset - i) * spacing;
+        }
+
+        x = newX;
+        y = newY;
+        z = newZ;
+        timestamp = newTimestamp;
+        capacity = newCapacity;
+        head = 0;
+    }
+
+    void add(float x, float y, float z, long timestamp) {
+        this.x[head] = x;
+        this.y[head] = y;
+        this.z[head] = z;
+        this.timestamp[head] = timestamp;
+        head += 1;
+        if (head == capacity) {
+            head = 0;
+        }
+    }
+
+    /*
+        The sample that drops out of the most recent window of length n when the next one is
+         added, i.e. the oldest one in that window
+     */
+    float oldest(int axis, int n) {
+        return column(axis)[indexOf(n, 0)];
+    }
+
+    /*
+        Physical index of the i-th sample of the most recent window of length n (i = 0 is the
+         oldest sample in that window)
+     */
+    private int indexOf(int n, int i) {
+        int idx = head - n + i;
+        if (idx < 0) {
+            idx += capacity;
+        } else if (idx >= capacity) {
+            idx -= capacity;
+        }
+        return idx;
+    }
+
+    float[] column(int axis) {
+        switch (axis) {
+            case X:
+                return x;
+            case Y:
+                return y;
+            default:
+                return z;
+        }
+    }
+
+    /*
+        Copies the most recent n values of one axis into dest[0..n), oldest first. This is at most
+         two System.arraycopy calls, one for each side of the wrap point.
+     */
+    void copyWindow(int axis, float[] dest, int n) {
+        float[] src = column(axis);
+        int start = indexOf(n, 0);
+        int firstPart = Math.min(n, capacity - start);
+        System.arraycopy(src, start, dest, 0, firstPart);
+        if (firstPart < n) {
+            System.arraycopy(src, 0, dest, firstPart, n - firstPart);
+        }
+    }
+
+    /*
+        Same as copyWindow, but multiplies each sample by window[i] on the way (window is n long,
+         see WindowFunction.table), so windowing doesn't cost a second pass over dest. A null
+         window is the same as a plain copy.
+     */
+    void copyWindow(int axis, float[] dest, int n, float[] window) {
+        if (window == null) {
+            copyWindow(axis, dest, n);
+            return;
+        }
+        float[] src = column(axis);
+        int start = indexOf(n, 0);
+        int firstPart = Math.min(n, capacity - start);
+        for (int i = 0; i < firstPart; i++) {
+            dest[i] = src[start + i] * window[i];
+        }
+        for (int i = firstPart; i < n; i++) {
+            dest[i] = src[i - firstPart] * window[i];
+        }
+    }
+
+    /*
+        Timestamp of the i-th sample of the most recent window of length n (0 = oldest)
+     */
+    long timestampAt(int n, int i) {
+        return timestamp[indexOf(n, i)];
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.metronome2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+    Logs everything a BPMCounter sees to a file: every raw sample that goes into record() and
+     every estimate that comes out, so a session from the field can be replayed later with
+     ReplayHarness (which reads these files as binary traces).
+
+    The file is append-only, a new session just gets added to the end. Format (all big endian):
+
+        int   MAGIC ("BPMS", same as ReplayHarness.BINARY_MAGIC)
+        int   VERSION (2)
+        then records until the end of the file, each starting with a tag byte:
+            SESSION   long  timestamp_ns         the next sample's time is this plus its delta
+                      float resolution           m/s^2 per step of the quantized axes
+            SAMPLE    int   delta_ns             since the previous sample
+                      short x, y, z              in steps of resolution
+            ESTIMATE  float beatsPerSecond       what record() returned for the previous
+                      float confidence            sample, and getConfidence()
+
+    A sample takes 11 bytes instead of the 20 a long and three floats would, about 1.1 KB a
+     second at 100 Hz. A SESSION record comes first and again whenever the time between two
+     samples doesn't fit in an int (over 2.1 s, e.g. the sensor was paused).
+
+    Records collect in a BUFFER_SIZE direct buffer, and that goes to the channel in one write
+     once it's full, so the per-sample cost is a few puts and no write is ever bigger than the
+     buffer. The flip side is that a crash loses whatever is still in the buffer (15 s or so at
+     100 Hz); flush() writes it out early. An IOException stops the recording instead of
+     reaching the counter, getError() says what went wrong.
+
+    Attach it with BPMCounter.setSessionRecorder(). Like HopTraceRecorder it isn't thread safe:
+     with AsyncBPMCounter, only flush() or close() it after stop().
+ */
+public class SessionRecorder {
+    public static final int MAGIC = 0x42504d53;
+    public static final int VERSION = 2;
+    // About 1/20 of a percent of g per step, which leaves room for +-64 m/s^2
+    public static final float DEFAULT_RESOLUTION = 1f / 512;
+
+    static final byte SESSION = 1;
+    static final byte SAMPLE = 2;
+    static final byte ESTIMATE = 3;
+    private static final int SESSION_BYTES = 1 + 8 + 4;
+    private static final int SAMPLE_BYTES = 1 + 4 + 3 * 2;
+    private static final int ESTIMATE_BYTES = 1 + 4 + 4;
+    private static final int BUFFER_SIZE = 16384;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final float resolution;
+    private final float steps;
+
+    private boolean started = false;
+    private long lastTime;
+    private long bytesWritten = 0;
+    private IOException error = null;
+
+    public SessionRecorder(File path) throws IOException {
+        this(path, DEFAULT_RESOLUTION);
+    }
+
+    /*
+        Opens path for appending, creating it if needed. resolution is the size of one step of
+         the stored axes, in m/s^2; anything past +-32767 steps gets clipped.
+     */
+    public SessionRecorder(File path, float resolution) throws IOException {
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException("Resolution must be positive, got " + resolution);
+        }
+        this.resolution = resolution;
+        steps = 1 / resolution;
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        long size = channel.size();
+        if (size == 0) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        } else if (size < 8 || file.readInt() != MAGIC || file.readInt() != VERSION) {
+            file.close();
+            throw new IOException(path + " is not a version " + VERSION + " session log");
+        }
+        channel.position(size);
+    }
+
+    /*
+        One raw sample, as passed to BPMCounter.recordNanos
+     */
+    void sample(float x, float y, float z, long timestamp) {
+        long delta = timestamp - lastTime;
+        if (!started || delta != (int) delta) {
+            reserve(SESSION_BYTES);
+            buffer.put(SESSION);
+            buffer.putLong(timestamp);
+            buffer.putFloat(resolution);
+            started = true;
+            delta = 0;
+        }
+        reserve(SAMPLE_BYTES);
+        buffer.put(SAMPLE);
+        buffer.putInt((int) delta);
+        buffer.putShort(quantize(x));
+        buffer.putShort(quantize(y));
+        buffer.putShort(quantize(z));
+        lastTime = timestamp;
+    }
+
+    /*
+        The estimate record() returned for the last sample
+     */
+    void estimate(float beatsPerSecond, float confidence) {
+        reserve(ESTIMATE_BYTES);
+        buffer.put(ESTIMATE);
+        buffer.putFloat(beatsPerSecond);
+        buffer.putFloat(confidence);
+    }
+
+    private short quantize(float value) {
+        int q = Math.round(value * steps);
+        if (q > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (q < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) q;
+    }
+
+    private void reserve(int bytes) {
+        if (buffer.remaining() < bytes) {
+            writeBuffer();
+        }
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        if (error == null) {
+            try {
+                while (buffer.hasRemaining()) {
+                    bytesWritten += channel.write(buffer);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        // After an error records keep going into the buffer, they're just never written
+        buffer.clear();
+    }
+
+    /*
+        Writes out what's buffered so far (doesn't fsync)
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    /*
+        Bytes that made it to the file in this session, not counting what's still buffered
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /*
+        The write that stopped the recording, or null if it's still going
+     */
+    public IOException getError() {
+        return error;
+    }
+}
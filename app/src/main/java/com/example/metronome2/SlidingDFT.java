@@ -0,0 +1,133 @@
+package com.example.metronome2;
+
+/*
+    Sliding DFT over a fixed window of n samples, restricted to a contiguous range of bins.
+
+    Instead of recomputing the whole spectrum every hop, each bin k is updated once per sample:
+
+        X_k <- (X_k + newest - oldest) * e^(j*2*pi*k/n)
+
+    That's a couple of multiplies per tracked bin per sample, so for the ~25 bins between MIN_BPM
+     and MAX_BPM it's far cheaper than a full n-point FFT every hop, where 97% of the window is
+     unchanged anyway.
+
+    Float rounding errors accumulate with every update (the twiddle factors don't have magnitude
+     exactly 1), so after n updates needsResync() goes true and the owner should seed() again from
+     the real window. That costs O(n * bins) once per window, i.e. O(bins) per sample amortized.
+ */
+class SlidingDFT {
+    private final int n;
+    private int firstBin = 0;
+    private int binCount = 0;
+    private float[] re = new float[0];
+    private float[] im = new float[0];
+    private float[] twiddleRe = new float[0];
+    private float[] twiddleIm = new float[0];
+    private int updatesSinceSeed = 0;
+    private boolean seeded = false;
+
+    SlidingDFT(int n) {
+        this.n = n;
+    }
+
+    boolean isSeeded() {
+        return seeded;
+    }
+
+    /*
+        Forgets the tracked bins, e.g. after samples were added without calling update()
+     */
+    void invalidate() {
+        seeded = false;
+    }
+
+    /*
+        True if every bin in [from, to) is being tracked
+     */
+    boolean covers(int from, int to) {
+        return seeded && from >= firstBin && to <= firstBin + binCount;
+    }
+
+    boolean needsResync() {
+        return updatesSinceSeed >= n;
+    }
+
+    /*
+        Computes bins [from, to) directly from the window (oldest sample first) and starts
+         tracking them. Arrays are only reallocated if the bin range grew.
+     */
+    void seed(float[] window, int from, int to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, n / 2 + 1);
+        int count = to - from;
+        if (count > re.length) {
+            re = new float[count];
+            im = new float[count];
+            twiddleRe = new float[count];
+            twiddleIm = new float[count];
+        }
+        firstBin = from;
+        binCount = count;
+        for (int b = 0; b < count; b++) {
+            int k = from + b;
+            double stepRe = Math.cos(2 * Math.PI * k / n);
+            double stepIm = Math.sin(2 * Math.PI * k / n);
+
+            // Walk e^(-j*2*pi*k*m/n) by repeated multiplication, double precision is plenty for n steps
+            double wRe = 1;
+            double wIm = 0;
+            double sumRe = 0;
+            double sumIm = 0;
+            for (int m = 0; m < n; m++) {
+                sumRe += window[m] * wRe;
+                sumIm += window[m] * wIm;
+                double t = wRe * stepRe + wIm * stepIm;
+                wIm = wIm * stepRe - wRe * stepIm;
+                wRe = t;
+            }
+            re[b] = (float) sumRe;
+            im[b] = (float) sumIm;
+            twiddleRe[b] = (float) stepRe;
+            twiddleIm[b] = (float) stepIm;
+        }
+        updatesSinceSeed = 0;
+        seeded = true;
+    }
+
+    /*
+        Slides the window forward by one sample: newest enters, oldest (the sample that was n
+         samples ago) leaves.
+     */
+    void update(float newest, float oldest) {
+        if (!seeded) {
+            return;
+        }
+        float delta = newest - oldest;
+        for (int b = 0; b < binCount; b++) {
+            float r = re[b] + delta;
+            float i = im[b];
+            re[b] = r * twiddleRe[b] - i * twiddleIm[b];
+            im[b] = r * twiddleIm[b] + i * twiddleRe[b];
+        }
+        updatesSinceSeed += 1;
+    }
+
+    /*
+        Magnitude of bin k. Only valid for tracked bins, see covers()
+     */
+    float magnitude(int k) {
+        int b = k - firstBin;
+        return (float) Math.sqrt(re[b] * re[b] + im[b] * im[b]);
+    }
+
+    /*
+        Real and imaginary parts of bin k, same phase reference as an FFT of the window
+     */
+    float real(int k) {
+        return re[k - firstBin];
+    }
+
+    float imag(int k) {
+        return im[k - firstBin];
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.metronome2;
+
+/*
+    Runs all three axes and adds their power spectra together before looking for the peak. A beat
+     that shows up a little bit on every axis can win over a single noisy spike on one of them.
+     Still three FFTs per hop, but the peak search only happens once.
+ */
+public class SummedPowerFusion implements AxisFusion {
+    @Override
+    public void estimate(BPMCounter counter, float[] result) {
+        counter.analyzeAllAxes();
+        float[] magX = counter.axisMagnitude(SampleStore.X);
+        float[] magY = counter.axisMagnitude(SampleStore.Y);
+        float[] magZ = counter.axisMagnitude(SampleStore.Z);
+        float[] fused = counter.axisFusedMagnitude();
+
+        // Only the BPM band (plus a bin each side for the peak interpolation, and its harmonics with a harmonic PeakSearch) gets looked at, so that's all we need to sum
+        int from = Math.max(counter.axisBandStart() - 1, 0);
+        int to = counter.axisSearchEnd();
+        for (int i = from; i < to; i++) {
+            float power = magX[i] * magX[i] + magY[i] * magY[i] + magZ[i] * magZ[i];
+            fused[i] = (float) Math.sqrt(power);
+        }
+        // There's no single complex spectrum behind a power sum, so QUINN/JACOBSEN fall back to PARABOLIC
+        counter.pickAxisPeak(fused, null, result);
+    }
+}
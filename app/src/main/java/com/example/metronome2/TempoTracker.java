@@ -0,0 +1,198 @@
+package com.example.metronome2;
+
+/*
+    Smooths the estimates coming out of a BPMCounter and predicts the tempo between them, with a
+     two state Kalman filter: the tempo f (beats per second) and how fast it's changing v (beats
+     per second, per second).
+
+        predict (dt seconds after the last update):
+            f = f + v dt
+            P = F P F' + Q          F = [1 dt; 0 1],  Q = q [dt^3/3 dt^2/2; dt^2/2 dt]
+        update with an estimate z:
+            S = P00 + R             R = measurementNoise / confidence
+            K = [P00; P01] / S
+            f, v += K (z - f)
+            P = (I - K [1 0]) P
+
+    commons-math3 has a general KalmanFilter, but that goes through RealMatrix objects and
+     allocates on every step. With two states and one measurement everything above fits in a
+     handful of doubles, so that's all this keeps.
+
+    Each estimate counts for more the more confident the counter was about it (see
+     BPMCounter.getConfidence), and anything below minConfidence is ignored outright. An estimate
+     more than GATE standard deviations away from the prediction (typically an octave error) is
+     ignored too, unless REACQUIRE of them come in a row, in which case the tempo really changed
+     and the filter starts over from the newest one.
+
+    Between estimates the rate of change only carries the tempo forward for RATE_HORIZON
+     seconds, after that the tempo is held where it got to: a rate measured over a few seconds
+     says nothing about where the tempo will be a minute later, and extrapolating it that far
+     is how a display ends up at 400 BPM. After a gap of more than STALE seconds (the counter
+     was unsure for a while, or the wrist stopped) the filter doesn't gate the next estimate
+     against a prediction that far out, whose variance has grown with the cube of the gap and
+     would let anything through; it starts over from that estimate instead. Whatever comes out
+     is clamped to the counter's MIN_BPM..MAX_BPM.
+
+    Updates come from the counter's thread and tempoAt() from whoever draws the tempo, so all of
+     it is synchronized. Timestamps can be on any clock, as long as it's the same one throughout.
+ */
+public class TempoTracker {
+    // Standard deviations an estimate can be away from the prediction before it's an outlier
+    private static final double GATE = 4;
+    private static final int REACQUIRE = 3;
+    // Seconds the rate of change is extrapolated for, and the gap after which tracking restarts
+    private static final double RATE_HORIZON = 2;
+    private static final double STALE = 5;
+    // Range the tempo is kept in, beats per second
+    private static final double MIN_TEMPO = BPMCounter.MIN_BPM / 60.0;
+    private static final double MAX_TEMPO = BPMCounter.MAX_BPM / 60.0;
+
+    /*
+        Defaults: estimates good to about 1 BPM at full confidence, and a tempo that can drift by
+         a couple of BPM per second
+     */
+    private static final double MEASUREMENT_NOISE = (1 / 60.0) * (1 / 60.0);
+    private static final double PROCESS_NOISE = (2 / 60.0) * (2 / 60.0);
+    // How unsure the rate of change is when tracking starts, (beats per second per second)^2
+    private static final double INITIAL_RATE_VARIANCE = (5 / 60.0) * (5 / 60.0);
+
+    private final float minConfidence;
+    private final double measurementNoise;
+    private final double processNoise;
+
+    private boolean tracking = false;
+    private long lastTime;
+    private double tempo;
+    private double rate;
+    // Covariance of (tempo, rate), symmetric so P10 == P01
+    private double p00;
+    private double p01;
+    private double p11;
+    private int outliers = 0;
+
+    public TempoTracker(float minConfidence) {
+        this(minConfidence, MEASUREMENT_NOISE, PROCESS_NOISE);
+    }
+
+    /*
+        measurementNoise: variance of an estimate at confidence 1, in (beats per second)^2
+        processNoise: how much the tempo is expected to wander, in (beats per second per second)^2
+         per second
+     */
+    public TempoTracker(float minConfidence, double measurementNoise, double processNoise) {
+        if (!(measurementNoise > 0) || !(processNoise >= 0)) {
+            throw new IllegalArgumentException("Noise variances must be positive, got " + measurementNoise
+                    + " and " + processNoise);
+        }
+        this.minConfidence = minConfidence;
+        this.measurementNoise = measurementNoise;
+        this.processNoise = processNoise;
+    }
+
+    /*
+        Feeds in one estimate (beats per second, as returned by BPMCounter.record) taken at
+         timestampNanos. Returns whether it was used.
+     */
+    public synchronized boolean update(float beatsPerSecond, float confidence, long timestampNanos) {
+        if (!(beatsPerSecond > 0) || !(confidence >= minConfidence) || confidence <= 0) {
+            return false;
+        }
+        double r = measurementNoise / confidence;
+        if (!tracking || (timestampNanos - lastTime) / 1e9 > STALE) {
+            start(beatsPerSecond, r, timestampNanos);
+            return true;
+        }
+
+        predict(timestampNanos);
+        double s = p00 + r;
+        double innovation = beatsPerSecond - tempo;
+        if (innovation * innovation > GATE * GATE * s) {
+            outliers += 1;
+            if (outliers >= REACQUIRE) {
+                start(beatsPerSecond, r, timestampNanos);
+                return true;
+            }
+            return false;
+        }
+        outliers = 0;
+
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        tempo = clamp(tempo + k0 * innovation);
+        rate += k1 * innovation;
+        p11 -= k1 * p01;
+        p01 -= k0 * p01;
+        p00 -= k0 * p00;
+        return true;
+    }
+
+    /*
+        Moves the state forward to timestampNanos. Skipped for timestamps older than the state,
+         an estimate that arrives late is applied as if it was current. The rate only moves the
+         tempo for the first RATE_HORIZON seconds, so F uses that instead of dt; update() never
+         gets here with dt over STALE, which keeps the dt^3 in Q bounded.
+     */
+    private void predict(long timestampNanos) {
+        double dt = (timestampNanos - lastTime) / 1e9;
+        if (dt <= 0) {
+            return;
+        }
+        double q = processNoise;
+        double h = Math.min(dt, RATE_HORIZON);
+        tempo = clamp(tempo + rate * h);
+        p00 += h * (2 * p01 + h * p11) + q * dt * dt * dt / 3;
+        p01 += h * p11 + q * dt * dt / 2;
+        p11 += q * dt;
+        lastTime = timestampNanos;
+    }
+
+    private void start(float beatsPerSecond, double r, long timestampNanos) {
+        tracking = true;
+        lastTime = timestampNanos;
+        tempo = clamp(beatsPerSecond);
+        rate = 0;
+        p00 = r;
+        p01 = 0;
+        p11 = INITIAL_RATE_VARIANCE;
+        outliers = 0;
+    }
+
+    /*
+        The predicted tempo at timestampNanos in beats per second, or -1 before the first usable
+         estimate. Doesn't change the state, so it can be called as often as the display wants.
+     */
+    public synchronized float tempoAt(long timestampNanos) {
+        if (!tracking) {
+            return -1;
+        }
+        double dt = Math.min(Math.max((timestampNanos - lastTime) / 1e9, 0), RATE_HORIZON);
+        return (float) clamp(tempo + rate * dt);
+    }
+
+    private static double clamp(double beatsPerSecond) {
+        return Math.min(Math.max(beatsPerSecond, MIN_TEMPO), MAX_TEMPO);
+    }
+
+    /*
+        How fast the tempo is changing, in beats per second per second
+     */
+    public synchronized float getRate() {
+        return tracking ? (float) rate : 0;
+    }
+
+    /*
+        Standard deviation of the tempo as of the last update, in beats per second
+     */
+    public synchronized float getUncertainty() {
+        return tracking ? (float) Math.sqrt(p00) : Float.NaN;
+    }
+
+    public synchronized boolean isTracking() {
+        return tracking;
+    }
+
+    public synchronized void reset() {
+        tracking = false;
+        outliers = 0;
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.metronome2;
+
+/*
+    Collapses every sample to the length of the acceleration vector, sqrt(x^2 + y^2 + z^2), and
+     runs a single FFT on that. Doesn't care how the watch is oriented on the wrist, but the
+     length is always positive, so the mean gets removed first to keep the DC bin from leaking
+     into the low BPM bins.
+ */
+public class VectorMagnitudeFusion implements AxisFusion {
+    @Override
+    public void estimate(BPMCounter counter, float[] result) {
+        float[] x = counter.window(SampleStore.X);
+        float[] y = counter.window(SampleStore.Y);
+        float[] z = counter.window(SampleStore.Z);
+        float[] fused = counter.fusedWindow();
+        int n = fused.length;
+
+        float sum = 0;
+        for (int i = 0; i < n; i++) {
+            fused[i] = (float) Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+            sum += fused[i];
+        }
+        float mean = sum / n;
+        for (int i = 0; i < n; i++) {
+            fused[i] -= mean;
+        }
+
+        counter.pickPeak(counter.spectrumOf(fused), fused, result);
+    }
+}
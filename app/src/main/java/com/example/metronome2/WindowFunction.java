@@ -0,0 +1,89 @@
+package com.example.metronome2;
+
+/*
+    Window functions for the spectrum. Without one (RECTANGULAR), the window's hard edges smear
+     every peak across the whole spectrum ("leakage"): a beat between two bins shows up at -13 dB
+     in bins far away from it, and the sidelobes of a strong axis can outweigh the real peak of a
+     weaker one. Tapering the ends of the window pushes those sidelobes way down, at the cost of a
+     wider main peak.
+
+        RECTANGULAR     - no window, narrowest peak, sidelobes at -13 dB
+        HANN            - sidelobes at -31 dB, falling off quickly
+        HAMMING         - sidelobes at -43 dB, but they stay there
+        BLACKMAN_HARRIS - 4 term, sidelobes at -92 dB, peak about twice as wide as HANN
+        KAISER          - beta = 6, sidelobes at -44 dB, between HANN and BLACKMAN_HARRIS in width
+
+    All of them are the periodic (DFT-even) versions, i.e. w[n] would be the first sample of the
+     next window, which is what you want when the window feeds an FFT.
+
+    table(n) computes the coefficients once per size and hands back the same array after that, so
+     the caller can multiply them in while copying samples out (see SampleStore.copyWindow) instead
+     of making a separate pass.
+ */
+public enum WindowFunction {
+    RECTANGULAR,
+    HANN,
+    HAMMING,
+    BLACKMAN_HARRIS,
+    KAISER;
+
+    private static final double KAISER_BETA = 6;
+
+    // Tables computed so far, one per size. There's normally only one size in use.
+    private float[][] tables = new float[0][];
+
+    /*
+        The window's n coefficients. The array is shared, don't write to it.
+     */
+    synchronized float[] table(int n) {
+        for (float[] t : tables) {
+            if (t.length == n) {
+                return t;
+            }
+        }
+        float[] t = new float[n];
+        for (int i = 0; i < n; i++) {
+            t[i] = (float) value(i, n);
+        }
+        float[][] grown = new float[tables.length + 1][];
+        System.arraycopy(tables, 0, grown, 0, tables.length);
+        grown[tables.length] = t;
+        tables = grown;
+        return t;
+    }
+
+    private double value(int i, int n) {
+        double x = 2 * Math.PI * i / n;
+        switch (this) {
+            case HANN:
+                return 0.5 - 0.5 * Math.cos(x);
+            case HAMMING:
+                return 0.54 - 0.46 * Math.cos(x);
+            case BLACKMAN_HARRIS:
+                return 0.35875 - 0.48829 * Math.cos(x) + 0.14128 * Math.cos(2 * x) - 0.01168 * Math.cos(3 * x);
+            case KAISER:
+                // I0(beta * sqrt(1 - r^2)) / I0(beta), r going from -1 to 1 over the (periodic) window
+                double r = 2.0 * i / n - 1;
+                return besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / besselI0(KAISER_BETA);
+            default:
+                return 1;
+        }
+    }
+
+    /*
+        Modified Bessel function of the first kind, order 0, from its power series. Converges
+         quickly for the small arguments a window needs.
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.metronome2;
+
+import org.jtransforms.fft.FloatFFT_1D;
+import org.jtransforms.utils.CommonUtils;
+
+/*
+    Chirp-z ("zoom") transform: evaluates the spectrum of an n sample window on a dense, evenly
+     spaced grid of frequencies inside a narrow band, instead of on the n/2 FFT bins across the
+     whole range up to Nyquist.
+
+    It's the same trick FloatFFT_1D uses for its Bluestein plan: rewrite nk as
+     (n^2 + k^2 - (k - n)^2) / 2, and the DFT turns into a chirp multiply, a convolution with a
+     chirp, and another chirp multiply. The convolution runs as two FFTs of a power of two size
+     L >= n + points - 1, and the FFT of the chirp kernel only gets computed when the grid changes.
+
+    Frequencies here are normalized (cycles per sample), so the grid stays valid when the sample
+     rate drifts a little; the owner multiplies by the sample rate to get Hz.
+
+    Compared to zero-padding the whole window to get the same spacing (e.g. 1 BPM steps at 50 Hz
+     would need a 3000+ point FFT covering 0 Hz to Nyquist), only the band we care about gets
+     computed.
+ */
+class ZoomSpectrum {
+    private final int n;
+    private int points = 0;
+    private int convolutionSize = 0;
+    private float firstFrequency = 0;
+    private float step = 0;
+
+    private FloatFFT_1D fft;
+    // e^(-j*2*pi*(f0*m + step*m^2/2)) for each input sample m
+    private float[] preChirp;
+    // FFT of the chirp kernel e^(+j*pi*step*m^2), m = -(n-1) .. points-1
+    private float[] kernel;
+    private float[] work;
+
+    ZoomSpectrum(int n) {
+        this.n = n;
+    }
+
+    int points() {
+        return points;
+    }
+
+    /*
+        Normalized frequency of grid point k
+     */
+    float frequency(int k) {
+        return firstFrequency + k * step;
+    }
+
+    /*
+        True if the current grid spans [from, to] (cycles per sample)
+     */
+    boolean covers(float from, float to) {
+        return points > 0 && from >= firstFrequency && to <= frequency(points - 1);
+    }
+
+    /*
+        Sets up a grid of the given number of points from `from` to `to` (cycles per sample). This
+         is the expensive part, so only call it when the band actually moved.
+     */
+    void plan(float from, float to, int points) {
+        this.points = points;
+        firstFrequency = from;
+        step = (to - from) / (points - 1);
+
+        int size = CommonUtils.nextPow2(n + points - 1);
+        if (size != convolutionSize) {
+            convolutionSize = size;
+            fft = new FloatFFT_1D(size);
+            kernel = new float[2 * size];
+            work = new float[2 * size];
+        }
+        if (preChirp == null || preChirp.length != 2 * n) {
+            preChirp = new float[2 * n];
+        }
+
+        for (int m = 0; m < n; m++) {
+            double phase = -2 * Math.PI * (from * (double) m + 0.5 * step * (double) m * m);
+            preChirp[2 * m] = (float) Math.cos(phase);
+            preChirp[2 * m + 1] = (float) Math.sin(phase);
+        }
+
+        /*
+            Kernel laid out for a circular convolution: m = 0 .. points-1 at the front, the
+             negative m = -1 .. -(n-1) wrapped around at the back, zeros in between
+         */
+        for (int i = 0; i < 2 * convolutionSize; i++) {
+            kernel[i] = 0;
+        }
+        for (int m = 0; m < points; m++) {
+            double phase = Math.PI * step * (double) m * m;
+            kernel[2 * m] = (float) Math.cos(phase);
+            kernel[2 * m + 1] = (float) Math.sin(phase);
+        }
+        for (int m = 1; m < n; m++) {
+            double phase = Math.PI * step * (double) m * m;
+            int idx = convolutionSize - m;
+            kernel[2 * idx] = (float) Math.cos(phase);
+            kernel[2 * idx + 1] = (float) Math.sin(phase);
+        }
+        fft.complexForward(kernel);
+    }
+
+    /*
+        Evaluates the grid for a window of n real samples and writes the magnitudes to
+         magnitude[0..points). Doesn't allocate.
+     */
+    void transform(float[] window, float[] magnitude) {
+        for (int m = 0; m < n; m++) {
+            work[2 * m] = window[m] * preChirp[2 * m];
+            work[2 * m + 1] = window[m] * preChirp[2 * m + 1];
+        }
+        for (int i = 2 * n; i < 2 * convolutionSize; i++) {
+            work[i] = 0;
+        }
+
+        fft.complexForward(work);
+        for (int i = 0; i < convolutionSize; i++) {
+            float re = work[2 * i] * kernel[2 * i] - work[2 * i + 1] * kernel[2 * i + 1];
+            float im = work[2 * i] * kernel[2 * i + 1] + work[2 * i + 1] * kernel[2 * i];
+            work[2 * i] = re;
+            work[2 * i + 1] = im;
+        }
+        fft.complexInverse(work, true);
+
+        /*
+            The final chirp multiply (e^(-j*pi*step*k^2)) has magnitude 1, so it's skipped: we
+             only want magnitudes, not phase.
+         */
+        for (int k = 0; k < points; k++) {
+            float re = work[2 * k];
+            float im = work[2 * k + 1];
+            magnitude[k] = (float) Math.sqrt(re * re + im * im);
+        }
+    }
+}
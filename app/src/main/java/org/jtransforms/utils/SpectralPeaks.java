@@ -0,0 +1,123 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JTransforms
+ * Copyright (c) 2007 onward, Piotr Wendykier
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.jtransforms.utils;
+
+/**
+ * Peak search over the output of a real forward transform, without computing
+ * a magnitude spectrum first.
+ * <p>
+ * The methods take the spectrum in the layout the <code>realForward</code>
+ * methods of the 1D transforms produce: for 0 &lt; k &lt; n/2,
+ * <code>a[2*k]</code> and <code>a[2*k+1]</code> are the real and imaginary parts
+ * of bin k. Peaks are ranked by squared magnitude, which orders bins exactly like
+ * the magnitude does, so no square root is taken per bin; only the bins in the
+ * requested band are read, and the k strongest peaks are kept in a single pass.
+ * Callers that need magnitudes can take the square root of the few powers they
+ * actually use.
+ */
+public class SpectralPeaks
+{
+
+    private SpectralPeaks()
+    {
+
+    }
+
+    /**
+     * Returns the squared magnitude of bin k of a spectrum in
+     * <code>realForward</code> layout.
+     *
+     * @param a spectrum, as returned by <code>realForward</code>
+     * @param k bin, 0 &lt; k &lt; a.length/2
+     *
+     * @return re[k]^2 + im[k]^2
+     */
+    public static float power(float[] a, int k)
+    {
+        float re = a[2 * k];
+        float im = a[2 * k + 1];
+        return re * re + im * im;
+    }
+
+    /**
+     * Finds the strongest local maxima of the power spectrum within the band
+     * [from, to), in a single pass that touches only the bins in the band.
+     * <p>
+     * A bin is a local maximum if its power is greater than that of the bin
+     * before it and not less than that of the bin after it, so a plateau counts
+     * once, at its first bin. The bins just outside the band are not read; the
+     * band edges count as minus infinity, so a band edge can be a peak. Bins whose
+     * power is NaN are never peaks. Of peaks with equal power, the one at the
+     * lower bin ranks first.
+     *
+     * @param a       spectrum, as returned by <code>realForward</code>
+     * @param from    first bin of the band, at least 1 (bin 0 shares a[0] and a[1]
+     *                with the Nyquist bin)
+     * @param to      end of the band (exclusive), at most a.length/2
+     * @param k       how many peaks to keep
+     * @param indices receives the bins of the peaks found, strongest first; at
+     *                least k long
+     * @param powers  receives their squared magnitudes; at least k long
+     *
+     * @return number of peaks found, at most k
+     */
+    public static int findPeaks(float[] a, int from, int to, int k, int[] indices, float[] powers)
+    {
+        if (from < 1 || to > a.length / 2 || from > to) {
+            throw new IllegalArgumentException("band [" + from + ", " + to + ") has to be within [1, " + a.length / 2 + ")");
+        }
+        if (k < 1 || indices.length < k || powers.length < k) {
+            throw new IllegalArgumentException("k has to be at least 1 and fit in indices and powers");
+        }
+        int count = 0;
+        // Powers of bins i - 2 and i - 1, with the band edges counting as -infinity
+        float before = Float.NEGATIVE_INFINITY;
+        float previous = Float.NEGATIVE_INFINITY;
+        for (int i = from; i <= to; i++) {
+            float power = Float.NEGATIVE_INFINITY;
+            if (i < to) {
+                float re = a[2 * i];
+                float im = a[2 * i + 1];
+                power = re * re + im * im;
+            }
+            if (previous > before && previous >= power && (count < k || previous > powers[count - 1])) {
+                // Insert i - 1, dropping the weakest peak if all k slots are taken
+                int slot = count < k ? count++ : k - 1;
+                while (slot > 0 && previous > powers[slot - 1]) {
+                    indices[slot] = indices[slot - 1];
+                    powers[slot] = powers[slot - 1];
+                    slot--;
+                }
+                indices[slot] = i - 1;
+                powers[slot] = previous;
+            }
+            before = previous;
+            previous = power;
+        }
+        return count;
+    }
+}